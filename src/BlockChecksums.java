@@ -0,0 +1,197 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32C;
+
+/**
+ * Computes the CRC32C checksums of a file in blocks of CHECKSUM_BLOCK_SIZE.
+ *
+ * Blocks are read from the file and checksummed by a shared pool of worker
+ * threads, which keeps this work off the threads sending and receiving packets.
+ * The checksum of the whole file is derived by combining the block checksums,
+ * which is done on the worker threads as well.
+ */
+class BlockChecksums {
+	// the reversed Castagnoli polynomial 0x1EDC6F41 used by CRC32C
+	private static final int CRC32C_POLYNOMIAL = 0x82f63b78;
+
+	private static final ExecutorService _pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+		final Thread thread = new Thread(r, "checksum");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private static final ThreadLocal<ByteBuffer> _buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(UDPBase.CHECKSUM_BLOCK_SIZE));
+
+	private final FileChannel _channel;
+	private final long _length;
+	private final CompletableFuture<Integer>[] _blocks;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	BlockChecksums(FileChannel channel, long length) {
+		_channel = channel;
+		_length = length;
+		_blocks = new CompletableFuture[(int) ((length + UDPBase.CHECKSUM_BLOCK_SIZE - 1) / UDPBase.CHECKSUM_BLOCK_SIZE)];
+	}
+
+	int count() {
+		return _blocks.length;
+	}
+
+	long offset(int block) {
+		return (long) block * UDPBase.CHECKSUM_BLOCK_SIZE;
+	}
+
+	int length(int block) {
+		return (int) Math.min(UDPBase.CHECKSUM_BLOCK_SIZE, _length - this.offset(block));
+	}
+
+	boolean submitted(int block) {
+		return _blocks[block] != null;
+	}
+
+	/**
+	 * Schedules the checksum of a block to be computed from the current file contents.
+	 *
+	 * Ranges past the end of the file count as zeros,
+	 * since they will be once the file has been extended.
+	 */
+	void submit(int block) {
+		final long offset = this.offset(block);
+		final int length = this.length(block);
+
+		_blocks[block] = CompletableFuture.supplyAsync(() -> {
+			final ByteBuffer buf = _buffers.get();
+			buf.clear();
+			buf.limit(length);
+
+			try {
+				while (buf.hasRemaining()) {
+					if (_channel.read(buf, offset + buf.position()) == -1) {
+						buf.put(UDPBase.ZEROS, 0, Math.min(buf.remaining(), UDPBase.ZEROS.length));
+					}
+				}
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+
+			final CRC32C cc = new CRC32C();
+			cc.update(buf.array(), 0, length);
+			return (int) cc.getValue();
+		}, _pool);
+	}
+
+	void invalidate(int block) {
+		_blocks[block] = null;
+	}
+
+	/**
+	 * Waits for the checksum of a submitted block.
+	 *
+	 * @throws IOException if the block couldn't be read.
+	 */
+	int get(int block) throws IOException {
+		try {
+			return _blocks[block].join();
+		} catch (CompletionException e) {
+			throw new IOException("failed to checksum block " + block, e.getCause());
+		}
+	}
+
+	/**
+	 * Combines the checksums of all blocks, all of which must have been submitted.
+	 *
+	 * @return The CRC32C of the whole file, once all blocks have been checksummed.
+	 */
+	CompletableFuture<Integer> combined() {
+		final CompletableFuture<Integer>[] blocks = _blocks.clone();
+
+		return CompletableFuture.allOf(blocks).thenApplyAsync(v -> {
+			int crc = 0;
+
+			for (int i = 0; i < blocks.length; i++) {
+				crc = BlockChecksums.combine(crc, blocks[i].join(), this.length(i));
+			}
+
+			return crc;
+		}, _pool);
+	}
+
+	/**
+	 * Computes the CRC32C of two concatenated ranges from the CRC32C of each of them.
+	 *
+	 * This is the algorithm of zlib's crc32_combine(): Appending len2 zero bytes
+	 * to the first range is a linear operation on its CRC, which is applied
+	 * using a 32x32 matrix over GF(2), squared for each bit of len2.
+	 */
+	static int combine(int crc1, int crc2, long len2) {
+		if (len2 <= 0) {
+			return crc1;
+		}
+
+		final int[] even = new int[32];
+		final int[] odd = new int[32];
+
+		// the operator for a single zero bit
+		odd[0] = CRC32C_POLYNOMIAL;
+
+		for (int n = 1, row = 1; n < 32; n++, row <<= 1) {
+			odd[n] = row;
+		}
+
+		// the operators for two and four zero bits
+		BlockChecksums.square(even, odd);
+		BlockChecksums.square(odd, even);
+
+		// the first squaring below results in the operator for a single zero byte
+		while (true) {
+			BlockChecksums.square(even, odd);
+
+			if ((len2 & 1) != 0) {
+				crc1 = BlockChecksums.times(even, crc1);
+			}
+
+			len2 >>>= 1;
+
+			if (len2 == 0) {
+				break;
+			}
+
+			BlockChecksums.square(odd, even);
+
+			if ((len2 & 1) != 0) {
+				crc1 = BlockChecksums.times(odd, crc1);
+			}
+
+			len2 >>>= 1;
+
+			if (len2 == 0) {
+				break;
+			}
+		}
+
+		return crc1 ^ crc2;
+	}
+
+	private static int times(int[] mat, int vec) {
+		int sum = 0;
+
+		for (int i = 0; vec != 0; i++, vec >>>= 1) {
+			if ((vec & 1) != 0) {
+				sum ^= mat[i];
+			}
+		}
+
+		return sum;
+	}
+
+	private static void square(int[] square, int[] mat) {
+		for (int n = 0; n < 32; n++) {
+			square[n] = BlockChecksums.times(mat, mat[n]);
+		}
+	}
+}
@@ -0,0 +1,311 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A content-addressed store for chunks of uploaded files.
+ *
+ * All chunks are appended to a single data file. An index file holds
+ * a record for each chunk, consisting of its SHA-256 hash, its offset
+ * in the data file and its length. The index is read into memory on startup,
+ * while the most recently used chunk contents are kept in an LRU cache.
+ *
+ * Files are only added once they have been verified and moved into place.
+ * A background thread reads them again and splits them into chunks just like
+ * clients do, so that failed uploads never leave chunks behind.
+ * Every stored chunk is written a second time this way, which is why the size
+ * of the data file is limited. Once it's full, no further chunks are added.
+ *
+ * Received files aren't assembled from chunk references, but remain ordinary files
+ * in the working directory, since downloads map them into memory, deltas read them
+ * as their basis and other processes expect complete files to appear there.
+ */
+class ChunkStore {
+	private static final int CHUNK_HASH_SIZE = UDPBase.CHUNK_HASH_SIZE;
+	private static final int RECORD_SIZE = CHUNK_HASH_SIZE + 8 + 4;
+
+	// the amount of chunks written to the data file before their records are added to the index
+	private static final int BATCH_SIZE = 4096;
+
+	private static final ExecutorService _ingest = Executors.newSingleThreadExecutor(r -> {
+		final Thread thread = new Thread(r, "chunk-store");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private static class Location {
+		final long offset;
+		final int length;
+
+		Location(long offset, int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private final RandomAccessFile _data;
+	private final RandomAccessFile _index;
+	private final HashMap<ByteBuffer, Location> _locations = new HashMap<>();
+	private final LinkedHashMap<ByteBuffer, byte[]> _cache = new LinkedHashMap<>(16, 0.75f, true);
+	private final long _cacheBudget;
+	private final long _sizeBudget;
+	private long _cacheSize;
+	private long _size;
+	private boolean _full;
+
+	/**
+	 * Opens the store in the given directory or creates a new one.
+	 *
+	 * Index records pointing past the end of the data file are ignored.
+	 * They can only be the result of a crash in between writing
+	 * a chunk and its record, in which case the chunk is incomplete.
+	 * Data past the last record is cut off, since it has never been indexed.
+	 *
+	 * @param dir The directory containing the store.
+	 * @param cacheBudget The maximum amount of chunk data to cache in memory.
+	 * @param sizeBudget The maximum size of the data file.
+	 * @throws IOException
+	 */
+	ChunkStore(File dir, long cacheBudget, long sizeBudget) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("cannot create chunk store directory '" + dir + "'");
+		}
+
+		_data = new RandomAccessFile(new File(dir, "chunks.dat"), "rw");
+		_index = new RandomAccessFile(new File(dir, "chunks.idx"), "rw");
+		_cacheBudget = cacheBudget;
+		_sizeBudget = sizeBudget;
+
+		final long dataLength = _data.length();
+		final long records = _index.length() / RECORD_SIZE;
+
+		for (long i = 0; i < records; i++) {
+			final byte[] hash = new byte[CHUNK_HASH_SIZE];
+			_index.readFully(hash);
+
+			final long offset = _index.readLong();
+			final int length = _index.readInt();
+
+			if (offset >= 0 && length > 0 && offset + length <= dataLength) {
+				_locations.put(ByteBuffer.wrap(hash), new Location(offset, length));
+				_size = Math.max(_size, offset + length);
+			}
+		}
+
+		// drop a partially written record as well as unindexed data, and append to the end of both files
+		_index.setLength(records * RECORD_SIZE);
+		_index.seek(_index.length());
+		_data.setLength(_size);
+		_full = _size >= _sizeBudget;
+	}
+
+	synchronized int size() {
+		return _locations.size();
+	}
+
+	synchronized boolean contains(byte[] hash, int off) {
+		return _locations.containsKey(ByteBuffer.wrap(hash, off, CHUNK_HASH_SIZE).slice());
+	}
+
+	/**
+	 * Reads the contents of a chunk.
+	 *
+	 * @return The contents of the chunk or null if it isn't stored.
+	 * @throws IOException
+	 */
+	synchronized byte[] get(byte[] hash, int off) throws IOException {
+		final ByteBuffer key = ByteBuffer.wrap(hash, off, CHUNK_HASH_SIZE).slice();
+		byte[] data = _cache.get(key);
+
+		if (data != null) {
+			return data;
+		}
+
+		final Location location = _locations.get(key);
+
+		if (location == null) {
+			return null;
+		}
+
+		data = new byte[location.length];
+		_data.seek(location.offset);
+		_data.readFully(data);
+
+		this.cache(ByteBuffer.wrap(Arrays.copyOfRange(hash, off, off + CHUNK_HASH_SIZE)), data);
+		return data;
+	}
+
+	/**
+	 * Schedules a complete file to be split into chunks, which are added to the store.
+	 */
+	void add(File file) {
+		_ingest.execute(() -> {
+			try {
+				this.ingest(file);
+			} catch (Exception e) {
+				UDPBase.error("[error] chunk store: failed to add file '" + file.getName() + "': " + e.getMessage());
+			}
+		});
+	}
+
+	/**
+	 * Splits the file into chunks and appends those which aren't present yet.
+	 * All-zero chunks are skipped, since clients send them as holes.
+	 *
+	 * @throws Exception
+	 */
+	private void ingest(File file) throws Exception {
+		if (this.full()) {
+			return;
+		}
+
+		final MessageDigest md;
+
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+
+		final byte[] buf = new byte[2 * UDPBase.CHUNK_SIZE_MAX];
+		final LinkedHashMap<ByteBuffer, Location> batch = new LinkedHashMap<>();
+		int filled = 0;
+		boolean eof = false;
+
+		try (final FileInputStream fin = new FileInputStream(file)) {
+			while (true) {
+				while (!eof && filled < buf.length) {
+					final int n = fin.read(buf, filled, buf.length - filled);
+
+					if (n == -1) {
+						eof = true;
+					} else {
+						filled += n;
+					}
+				}
+
+				if (filled == 0) {
+					break;
+				}
+
+				int pos = 0;
+
+				while (pos < filled) {
+					final int n = UDPBase.chunkBoundary(buf, pos, filled - pos, eof);
+
+					if (n == -1) {
+						break;
+					}
+
+					if (!UDPBase.isZero(buf, pos, n)) {
+						md.update(buf, pos, n);
+						final ByteBuffer key = ByteBuffer.wrap(md.digest());
+
+						if (!batch.containsKey(key) && !this.contains(key.array(), 0)) {
+							final Location location = this.append(buf, pos, n);
+
+							if (location == null) {
+								this.commit(batch);
+								return;
+							}
+
+							batch.put(key, location);
+
+							if (batch.size() >= BATCH_SIZE) {
+								this.commit(batch);
+							}
+						}
+					}
+
+					pos += n;
+				}
+
+				System.arraycopy(buf, pos, buf, 0, filled - pos);
+				filled -= pos;
+			}
+		}
+
+		this.commit(batch);
+	}
+
+	private synchronized boolean full() {
+		return _full;
+	}
+
+	/**
+	 * Appends a chunk to the data file, without indexing it yet.
+	 *
+	 * @return The location of the chunk or null if the store is full.
+	 * @throws IOException
+	 */
+	private synchronized Location append(byte[] data, int off, int len) throws IOException {
+		if (_size + len > _sizeBudget) {
+			_full = true;
+			UDPBase.log(String.format("[warning] chunk store is full with %,d bytes, new chunks aren't stored anymore", _size));
+			return null;
+		}
+
+		final Location location = new Location(_size, len);
+		_data.seek(_size);
+		_data.write(data, off, len);
+		_size += len;
+
+		return location;
+	}
+
+	/**
+	 * Makes a batch of appended chunks available.
+	 *
+	 * The data is flushed to disk before the records are written and flushed
+	 * in turn, so that the index never points to data lost in a crash.
+	 *
+	 * @throws IOException
+	 */
+	private void commit(LinkedHashMap<ByteBuffer, Location> batch) throws IOException {
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		final ByteBuffer records = ByteBuffer.allocate(batch.size() * RECORD_SIZE);
+
+		for (Map.Entry<ByteBuffer, Location> entry : batch.entrySet()) {
+			records.put(entry.getKey().array());
+			records.putLong(entry.getValue().offset);
+			records.putInt(entry.getValue().length);
+		}
+
+		// the index is only written by this thread, so the event loop only waits for the lookup table
+		_data.getChannel().force(false);
+		_index.write(records.array());
+		_index.getChannel().force(false);
+
+		synchronized (this) {
+			_locations.putAll(batch);
+		}
+
+		batch.clear();
+	}
+
+	private void cache(ByteBuffer key, byte[] data) {
+		_cache.put(key, data);
+		_cacheSize += data.length;
+
+		final Iterator<Map.Entry<ByteBuffer, byte[]>> it = _cache.entrySet().iterator();
+
+		while (_cacheSize > _cacheBudget && it.hasNext()) {
+			_cacheSize -= it.next().getValue().length;
+			it.remove();
+		}
+	}
+}
@@ -0,0 +1,182 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Queues received packets per client and hands them out using deficit round robin.
+ *
+ * The server drains its socket into this queue, so that a client sending lots of
+ * packets (e.g. a distribution or many sessions at once) only delays the packets
+ * of other clients by a single round instead of the whole backlog.
+ * In each round a client may have as many bytes processed, and thus written to disk,
+ * as its quantum allows. Unused quantum is carried over as long as packets are queued.
+ * Packets causing more disk I/O than their own size, like copying blocks of
+ * a delta, are charged for it afterwards. Such a client stays in debt,
+ * even if it has no packets queued, until further rounds have paid it off.
+ *
+ * The memory of all queued packets is limited. If it's exceeded the last packet
+ * of the longest queue is dropped, which leaves the packets of other clients alone.
+ */
+class FairQueue {
+	static final class Packet {
+		final InetSocketAddress address;
+		final byte[] data;
+
+		Packet(InetSocketAddress address, byte[] data) {
+			this.address = address;
+			this.data = data;
+		}
+	}
+
+	private static final class Flow {
+		final InetAddress address;
+		final ArrayDeque<Packet> packets = new ArrayDeque<>();
+		long bytes;
+		long deficit;
+		boolean active;
+
+		Flow(InetAddress address) {
+			this.address = address;
+		}
+	}
+
+	private final HashMap<InetAddress, Flow> _flows = new HashMap<>();
+	private final ArrayDeque<Flow> _active = new ArrayDeque<>();
+	private final int _quantum;
+	private final long _budget;
+	private long _bytes;
+	private long _dropped;
+
+	/**
+	 * @param quantum The amount of bytes each client may have processed per round.
+	 * @param budget The maximum amount of bytes of all queued packets.
+	 */
+	FairQueue(int quantum, long budget) {
+		_quantum = quantum;
+		_budget = budget;
+	}
+
+	boolean isEmpty() {
+		return _active.isEmpty();
+	}
+
+	/**
+	 * @return The amount of bytes of all queued packets.
+	 */
+	long bytes() {
+		return _bytes;
+	}
+
+	long budget() {
+		return _budget;
+	}
+
+	/**
+	 * @return The amount of packets dropped so far, because the budget was exceeded.
+	 */
+	long dropped() {
+		return _dropped;
+	}
+
+	/**
+	 * Queues a copy of the remaining bytes of the packet.
+	 */
+	void add(InetSocketAddress address, ByteBuffer data) {
+		final byte[] copy = new byte[data.remaining()];
+		data.get(copy);
+
+		Flow flow = _flows.get(address.getAddress());
+
+		if (flow == null) {
+			flow = new Flow(address.getAddress());
+			_flows.put(flow.address, flow);
+		}
+
+		if (!flow.active) {
+			flow.active = true;
+			_active.add(flow);
+		}
+
+		flow.packets.add(new Packet(address, copy));
+		flow.bytes += copy.length;
+		_bytes += copy.length;
+
+		while (_bytes > _budget) {
+			Flow longest = flow;
+
+			for (Flow f : _active) {
+				if (f.bytes > longest.bytes) {
+					longest = f;
+				}
+			}
+
+			final Packet dropped = longest.packets.removeLast();
+			longest.bytes -= dropped.data.length;
+			_bytes -= dropped.data.length;
+			_dropped++;
+
+			if (longest.packets.isEmpty()) {
+				this.remove(longest);
+			}
+		}
+	}
+
+	/**
+	 * Charges a client for bytes processed on top of those of its last packet.
+	 */
+	void charge(InetAddress address, long bytes) {
+		Flow flow = _flows.get(address);
+
+		if (flow == null) {
+			flow = new Flow(address);
+			_flows.put(address, flow);
+		}
+
+		flow.deficit -= bytes;
+	}
+
+	/**
+	 * @return The next packet to process or null if none are queued.
+	 */
+	Packet poll() {
+		while (true) {
+			final Flow flow = _active.peek();
+
+			if (flow == null) {
+				return null;
+			}
+
+			final Packet packet = flow.packets.peek();
+
+			// the client used up its quantum for this round, so the next one gets its turn
+			if (flow.deficit < packet.data.length) {
+				flow.deficit += _quantum;
+				_active.add(_active.remove());
+				continue;
+			}
+
+			flow.packets.remove();
+			flow.deficit -= packet.data.length;
+			flow.bytes -= packet.data.length;
+			_bytes -= packet.data.length;
+
+			// an idle client doesn't accumulate quantum, but its debt is kept
+			if (flow.packets.isEmpty()) {
+				this.remove(flow);
+			}
+
+			return packet;
+		}
+	}
+
+	private void remove(Flow flow) {
+		_active.remove(flow);
+		flow.active = false;
+
+		if (flow.deficit >= 0) {
+			_flows.remove(flow.address);
+		}
+	}
+}
@@ -0,0 +1,122 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A LRU cache of memory-mapped files.
+ *
+ * Files are mapped read-only and shared between all sessions serving them,
+ * which avoids repeatedly opening and reading popular files.
+ * The sum of the sizes of all cached files is kept below a memory budget.
+ * Entries which are still in use are never evicted, and files larger than
+ * the whole budget are mapped for the requesting session without being cached.
+ *
+ * Java offers no way to unmap a file explicitly. Evicted mappings are
+ * released by the garbage collector, once no session references them anymore.
+ */
+class MappedFileCache {
+	// a single MappedByteBuffer is limited to Integer.MAX_VALUE bytes
+	private static final int SEGMENT_SIZE = 1 << 30;
+
+	static class Entry {
+		private final long _lastModified;
+		private final long _length;
+		private final MappedByteBuffer[] _segments;
+		private int _references;
+
+		private Entry(File file) throws IOException {
+			_lastModified = file.lastModified();
+			_length = file.length();
+			_segments = new MappedByteBuffer[(int) ((_length + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+
+			try (final FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				for (int i = 0; i < _segments.length; i++) {
+					final long position = (long) i * SEGMENT_SIZE;
+					_segments[i] = ch.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SEGMENT_SIZE, _length - position));
+				}
+			}
+		}
+
+		long length() {
+			return _length;
+		}
+
+		/**
+		 * Copies len bytes starting at position of the file into dst.
+		 */
+		void read(long position, byte[] dst, int off, int len) {
+			while (len > 0) {
+				final MappedByteBuffer segment = _segments[(int) (position / SEGMENT_SIZE)];
+				final int index = (int) (position % SEGMENT_SIZE);
+				final int n = Math.min(len, segment.capacity() - index);
+
+				segment.get(index, dst, off, n);
+
+				position += n;
+				off += n;
+				len -= n;
+			}
+		}
+	}
+
+	private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<>(16, 0.75f, true);
+	private final long _budget;
+	private long _size;
+
+	MappedFileCache(long budget) {
+		_budget = budget;
+	}
+
+	/**
+	 * Returns a mapping of the file, which must be given back using release().
+	 *
+	 * @throws IOException
+	 */
+	Entry acquire(File file) throws IOException {
+		final String key = file.getCanonicalPath();
+		Entry entry = _entries.get(key);
+
+		// the file was replaced or modified since it was mapped
+		if (entry != null && (entry._lastModified != file.lastModified() || entry._length != file.length())) {
+			_entries.remove(key);
+			_size -= entry._length;
+			entry = null;
+		}
+
+		if (entry == null) {
+			entry = new Entry(file);
+
+			if (entry._length <= _budget) {
+				_entries.put(key, entry);
+				_size += entry._length;
+				this.evict();
+			}
+		}
+
+		entry._references++;
+		return entry;
+	}
+
+	void release(Entry entry) {
+		entry._references--;
+		this.evict();
+	}
+
+	private void evict() {
+		final Iterator<Map.Entry<String, Entry>> it = _entries.entrySet().iterator();
+
+		while (_size > _budget && it.hasNext()) {
+			final Entry entry = it.next().getValue();
+
+			if (entry._references == 0) {
+				_size -= entry._length;
+				it.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,111 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * The names of all files in the directory uploads are stored in.
+ *
+ * The directory is listed once on startup, afterwards the index is kept up to date
+ * by the server itself. Names are reserved as soon as a transfer starts, since
+ * the file only shows up in the directory once the transfer is complete.
+ * For every requested name the next suffix to try is remembered, which is why
+ * uploading the same name over and over again doesn't probe all previous ones.
+ */
+class NameIndex {
+	private final File _dir;
+	private final HashSet<String> _names = new HashSet<>();
+	private final HashMap<String, Integer> _nextSuffix = new HashMap<>();
+
+	NameIndex(File dir) throws IOException {
+		final String[] names = dir.list();
+
+		if (names == null) {
+			throw new IOException("cannot list directory '" + dir + "'");
+		}
+
+		_dir = dir;
+
+		for (String name : names) {
+			_names.add(name);
+		}
+	}
+
+	int size() {
+		return _names.size();
+	}
+
+	/**
+	 * Reserves the given name or, if it's taken, the first free one with a number
+	 * inserted before the extension, e.g. "file1.txt" for "file.txt".
+	 */
+	File reserve(String filename) throws Exception {
+		if (_names.add(filename)) {
+			return new File(_dir, filename);
+		}
+
+		final int idx = filename.lastIndexOf('.');
+		final String name = idx > 0 ? filename.substring(0, idx) : filename;
+		final String ext = idx > 0 ? filename.substring(idx) : "";
+
+		for (int i = _nextSuffix.getOrDefault(filename, 1); i > 0; i++) {
+			final String candidate = name + i + ext;
+
+			if (_names.add(candidate)) {
+				_nextSuffix.put(filename, i + 1);
+				return new File(_dir, candidate);
+			}
+		}
+
+		throw new Exception("could not find non existing filename");
+	}
+
+	/**
+	 * Gives up a name reserved for a transfer which failed.
+	 */
+	void release(File file) {
+		_names.remove(file.getName());
+	}
+
+	/**
+	 * Checks that files can be moved from the given directory into ours atomically,
+	 * which isn't the case if it's on another file system.
+	 *
+	 * @throws IOException
+	 */
+	void checkMove(File dir) throws IOException {
+		final File temp = File.createTempFile(".upload-", ".part", dir);
+		final File target = File.createTempFile(".upload-", ".part", _dir);
+
+		try {
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			throw new IOException("'" + dir + "' is not on the same file system as '" + _dir + "'");
+		} finally {
+			temp.delete();
+			target.delete();
+		}
+	}
+
+	/**
+	 * Moves a completely received file from the spool directory to its reserved name.
+	 *
+	 * The rename is atomic, so the file either doesn't exist or is complete.
+	 * Should another process have created a file with the same name in the
+	 * meantime, the next free name for the original filename is used instead of overwriting it.
+	 *
+	 * @return The file the data has been moved to.
+	 * @throws IOException if the spool directory is on another file system.
+	 */
+	File commit(File temp, File target, String filename) throws Exception {
+		while (target.exists()) {
+			target = this.reserve(filename);
+		}
+
+		Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		return target;
+	}
+}
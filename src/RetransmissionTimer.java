@@ -0,0 +1,64 @@
+/**
+ * Computes the retransmission timeout (RTO) of a sender.
+ *
+ * This implements sth. similar to the Retransmission
+ * Timer specified in RFC 6298 for TCP.
+ */
+class RetransmissionTimer {
+	private int _srtt = Integer.MAX_VALUE;
+	private int _rttvar;
+	private int _rto = UDPBase.PACKET_TIMEOUT_MAX;
+
+	int srtt() {
+		return _srtt;
+	}
+
+	int rttvar() {
+		return _rttvar;
+	}
+
+	int rto() {
+		return _rto;
+	}
+
+	void updateWithRtt(int rtt) {
+		if (rtt < 0) {
+			return;
+		}
+
+		if (_srtt == Integer.MAX_VALUE) {
+			_rttvar = rtt / 2;
+			_srtt = rtt;
+		} else {
+			_rttvar = (3 * _rttvar + Math.abs(_srtt - rtt)) / 4;
+			_srtt = (7 * _srtt + rtt) / 8;
+		}
+
+		this.setRto(_srtt + 4 * _rttvar);
+	}
+
+	void updateWithTimeout(int factor) {
+		if (factor < 0) {
+			return;
+		}
+
+		/*
+		 * Grow linear for the first 2 losses and after that exponential.
+		 * This should give us a small performance boost
+		 * in LANs where delays are pretty stable.
+		 */
+		if (factor < 3) {
+			this.setRto(_rto + factor * Math.max(1, _rttvar));
+		} else {
+			this.setRto(_rto * 2);
+		}
+	}
+
+	private void setRto(int rto) {
+		/*
+		 * A RTO of 0 must be avoided in any case, since
+		 * it would disable SO_RCVTIMEO, e.g. on the loopback device.
+		 */
+		_rto = Math.max(UDPBase.PACKET_TIMEOUT_MIN, Math.min(rto, UDPBase.PACKET_TIMEOUT_MAX));
+	}
+}
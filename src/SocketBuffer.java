@@ -0,0 +1,120 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+
+/**
+ * The send or receive buffer of a socket, which is grown at runtime.
+ *
+ * Starting with a small buffer keeps idle sockets cheap, while a buffer
+ * which is too small for the bandwidth-delay product drops packets long before
+ * the link is full. The buffer is doubled whenever it turns out to be too small,
+ * up to a memory budget. The kernel may cap it further (net.core.rmem_max
+ * and net.core.wmem_max on Linux), which is reported once.
+ */
+class SocketBuffer {
+	private static final String[] PROC_NET_UDP = { "/proc/net/udp", "/proc/net/udp6" };
+
+	private final DatagramSocket _socket;
+	private final SocketOption<Integer> _option;
+	private final long _budget;
+	private int _size;
+	private boolean _limited;
+
+	/**
+	 * @param option Either StandardSocketOptions.SO_RCVBUF or StandardSocketOptions.SO_SNDBUF.
+	 * @param initial The size to start with.
+	 * @param budget The size the buffer may grow to at most.
+	 * @throws IOException
+	 */
+	SocketBuffer(DatagramSocket socket, SocketOption<Integer> option, int initial, long budget) throws IOException {
+		_socket = socket;
+		_option = option;
+		_budget = Math.max(budget, initial);
+
+		this.resize(initial);
+	}
+
+	/**
+	 * @return The size of the buffer as reported by the kernel.
+	 */
+	int size() {
+		return _size;
+	}
+
+	/**
+	 * The amount of packet data the buffer can actually hold.
+	 *
+	 * Linux reports twice the requested size, since every packet is accounted
+	 * for including its bookkeeping overhead, which is why only half of it is used.
+	 */
+	int usable() {
+		return _size / 2;
+	}
+
+	/**
+	 * Grows the buffer so that it can hold at least the given amount of packet data.
+	 *
+	 * @return true if the buffer has grown.
+	 * @throws IOException
+	 */
+	boolean grow(long bytes) throws IOException {
+		if (bytes <= this.usable() || _limited) {
+			return false;
+		}
+
+		final long target = Math.min(Math.max(2 * bytes, 2L * _size), _budget);
+
+		if (target <= _size) {
+			return false;
+		}
+
+		final int previous = _size;
+		this.resize((int) target);
+
+		return _size > previous;
+	}
+
+	/**
+	 * Reads the amount of packets the kernel dropped, because the receive buffer was full.
+	 *
+	 * The counters are taken from /proc/net/udp and /proc/net/udp6, summing up
+	 * all sockets bound to our port, since several servers may share a multicast port.
+	 *
+	 * @return The amount of dropped packets or -1 if the platform doesn't expose them.
+	 */
+	long drops() {
+		final String port = String.format(":%04X", _socket.getLocalPort());
+		long drops = -1;
+
+		for (String path : PROC_NET_UDP) {
+			try (final BufferedReader reader = new BufferedReader(new FileReader(path))) {
+				// the header line names the columns, of which "drops" is the last one
+				String line = reader.readLine();
+
+				while ((line = reader.readLine()) != null) {
+					final String[] fields = line.trim().split("\\s+");
+
+					if (fields.length > 12 && fields[1].endsWith(port)) {
+						drops = Math.max(drops, 0) + Long.parseLong(fields[fields.length - 1]);
+					}
+				}
+			} catch (IOException | NumberFormatException e) {
+			}
+		}
+
+		return drops;
+	}
+
+	private void resize(int size) throws IOException {
+		_socket.setOption(_option, size);
+		_size = _socket.getOption(_option);
+
+		if (_size < size && _size < _budget) {
+			_limited = true;
+			UDPBase.log(String.format("[warning] %s limited to %,d by the system instead of %,d. Packets might get lost.", _option.name(), _size, size));
+		}
+	}
+}
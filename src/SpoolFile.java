@@ -0,0 +1,71 @@
+import java.io.File;
+
+/**
+ * A file which is being received.
+ *
+ * The data is written to a temporary file in the spool directory and only moved
+ * to its reserved name in the working directory once it has been verified.
+ * Other processes watching the working directory thus never see incomplete files.
+ */
+class SpoolFile {
+	private final String _filename;
+	private final File _temp;
+	private File _target;
+	private boolean _committed;
+
+	/**
+	 * Reserves a name for the file and creates the temporary file.
+	 *
+	 * @param filename The name the client asked for.
+	 * @throws Exception
+	 */
+	SpoolFile(String filename) throws Exception {
+		_filename = filename;
+		_target = UDPServer._names.reserve(filename);
+
+		try {
+			_temp = File.createTempFile(".upload-", ".part", UDPServer._spoolDir);
+		} catch (Exception e) {
+			UDPServer._names.release(_target);
+			throw e;
+		}
+	}
+
+	/**
+	 * The temporary file the data is written to.
+	 */
+	File temp() {
+		return _temp;
+	}
+
+	/**
+	 * The name of the file, as it will appear in the working directory.
+	 */
+	String getName() {
+		return _target.getName();
+	}
+
+	/**
+	 * Moves the completely received file to its name in the working directory.
+	 *
+	 * @return The file the data has been moved to.
+	 * @throws Exception
+	 */
+	File commit() throws Exception {
+		_target = UDPServer._names.commit(_temp, _target, _filename);
+		_committed = true;
+		return _target;
+	}
+
+	/**
+	 * Deletes the temporary file of a failed transfer and frees its name again.
+	 */
+	void discard() {
+		if (_committed) {
+			return;
+		}
+
+		_temp.delete();
+		UDPServer._names.release(_target);
+	}
+}
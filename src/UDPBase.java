@@ -3,9 +3,11 @@ import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.Random;
+import java.util.zip.Checksum;
 
 public class UDPBase {
 	protected static final int PACKET_ID_COUNT = 2;
@@ -16,6 +18,111 @@ public class UDPBase {
 
 	protected static final int PACKET_TIMEOUT_SERVER = 4 * PACKET_TIMEOUT_MAX;
 
+	/*
+	 * Feature flags of the extended protocol.
+	 *
+	 * A client requests features by appending an int with these flags to the
+	 * handshake, right before the CRC32 field. The server answers with the
+	 * subset it accepted in the payload of the handshake ACK.
+	 * If the client omits the field, or the ACK doesn't contain it, the original protocol is used.
+	 * Servers of the original protocol drop handshakes containing the field as invalid,
+	 * which is why clients repeat the handshake without it, if it stays unanswered.
+	 */
+	protected static final int FLAG_SPARSE = 1 << 0;
+	protected static final int FLAG_DELTA = 1 << 1;
+	protected static final int FLAG_CHUNKS = 1 << 2;
+	protected static final int FLAG_CRC32C = 1 << 3;
+	protected static final int FLAG_EARLY_DATA = 1 << 4;
+	protected static final int FLAG_BACKOFF = 1 << 5;
+
+	/*
+	 * Clients keep their session id for all transfers of a run and number them,
+	 * with the number following the flags field as a short. A handshake with
+	 * another number than the one of the session starts the next transfer,
+	 * otherwise it's a retransmission and answered by the existing session.
+	 * The server repeats the number right after the flags in the ACK, since a late
+	 * duplicate of the previous transfer's last ACK carries the same ids.
+	 */
+	protected static final int FLAG_TRANSFER = 1 << 6;
+
+	/*
+	 * Frame types of the extended protocol.
+	 *
+	 * Every data packet of the extended protocol carries exactly one frame,
+	 * which consists of a type byte directly following the packet header.
+	 */
+	protected static final byte FRAME_DATA = 'D';
+	protected static final byte FRAME_HOLE = 'H';
+	protected static final byte FRAME_END = 'E';
+	protected static final byte FRAME_SIGNATURES = 'S';
+	protected static final byte FRAME_COPY = 'C';
+	protected static final byte FRAME_QUERY = 'Q';
+	protected static final byte FRAME_REFERENCE = 'R';
+	protected static final byte FRAME_CHECKSUMS = 'K';
+	protected static final byte FRAME_REPAIR = 'P';
+	protected static final byte FRAME_POLL = 'W';
+	protected static final byte FRAME_JOIN = 'J';
+
+	/*
+	 * The answer of a busy server to a handshake with FLAG_BACKOFF,
+	 * followed by an int with the time to wait before retrying in ms.
+	 * ACKs of the extended protocol start with the flags, whose first byte is 0.
+	 */
+	protected static final byte FRAME_BUSY = 'B';
+
+	// the size of a block signature: an int weak rolling checksum and a MD5 digest
+	protected static final int SIGNATURE_SIZE = 4 + 16;
+
+	protected static final int DELTA_BLOCK_SIZE_MIN = 2 * 1024;
+	protected static final int DELTA_BLOCK_SIZE_MAX = 128 * 1024;
+
+	// the maximum amount of data a single FRAME_COPY may reference
+	protected static final long COPY_BYTES_MAX = 16 * 1024 * 1024;
+
+	/*
+	 * Content-defined chunking parameters.
+	 *
+	 * The 13 bit mask results in an average chunk size of about 8 KiB
+	 * on top of CHUNK_SIZE_MIN. Chunks are identified by their SHA-256 hash.
+	 */
+	protected static final int CHUNK_SIZE_MIN = 2 * 1024;
+	protected static final int CHUNK_SIZE_MAX = 64 * 1024;
+	protected static final long CHUNK_MASK = 0xfff8000000000000L;
+	protected static final int CHUNK_HASH_SIZE = 32;
+
+	/*
+	 * With FLAG_CRC32C the file is checksummed in blocks of this size.
+	 * A block is the unit in which corrupted data is resent.
+	 */
+	protected static final int CHECKSUM_BLOCK_SIZE = 1024 * 1024;
+
+	/*
+	 * Answer to a FRAME_END while the checksums are still being verified, in place
+	 * of the count of corrupted blocks, or the status of a distribution receiver.
+	 * The FRAME_END should be repeated later, the result is sent once it's known.
+	 */
+	protected static final short VERIFYING = -1;
+
+	/*
+	 * The amount of packets a distribution sends before polling its receivers.
+	 * The window starts out small and grows up to the receive window its receivers advertise.
+	 */
+	protected static final int DISTRIBUTION_WINDOW_INITIAL = 32;
+	protected static final int DISTRIBUTION_WINDOW_MAX = 4096;
+
+	private static final long[] GEAR = new long[256];
+
+	static {
+		// both sides must use the same table, which is why a fixed seed is used
+		final Random rand = new Random(0x4745415254424cL);
+
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = rand.nextLong();
+		}
+	}
+
+	protected static final byte[] ZEROS = new byte[64 * 1024];
+
 	protected static Random _rand = new Random();
 	protected static ByteBuffer _rxd = ByteBuffer.allocate(64 * 1024);
 	protected static DatagramPacket _rxp = new DatagramPacket(_rxd.array(), _rxd.capacity());
@@ -71,6 +178,90 @@ public class UDPBase {
 		return mtu;
 	}
 
+	/**
+	 * Checks whether a range of a byte array contains only zeros.
+	 *
+	 * @return true if all len bytes starting at off are zero.
+	 */
+	protected static boolean isZero(byte[] data, int off, int len) {
+		while (len > 0) {
+			int n = Math.min(len, ZEROS.length);
+
+			if (Arrays.mismatch(data, off, off + n, ZEROS, 0, n) != -1) {
+				return false;
+			}
+
+			off += n;
+			len -= n;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Feeds len zero bytes into a checksum.
+	 */
+	protected static void updateWithZeros(Checksum cc, long len) {
+		while (len > 0) {
+			int n = (int) Math.min(len, ZEROS.length);
+			cc.update(ZEROS, 0, n);
+			len -= n;
+		}
+	}
+
+	/**
+	 * Computes the weak checksum of a block, as used by rsync.
+	 *
+	 * The lower 16 bit contain the sum of all bytes and the upper 16 bit
+	 * the sum of those sums. Both are kept unmasked in a and b by callers
+	 * which roll the checksum over a stream of bytes using:
+	 *   a += in - out;
+	 *   b += a - len * out;
+	 *
+	 * @return The weak checksum of len bytes starting at off.
+	 */
+	protected static int weakChecksum(byte[] data, int off, int len) {
+		int a = 0;
+		int b = 0;
+
+		for (int i = off; i < off + len; i++) {
+			a += data[i] & 0xff;
+			b += a;
+		}
+
+		return (a & 0xffff) | (b << 16);
+	}
+
+	/**
+	 * Finds the end of the chunk starting at off using a Gear hash.
+	 *
+	 * The hash is reset at the beginning of each chunk, and since it only
+	 * depends on the last 64 bytes, boundaries resynchronize quickly after
+	 * an insertion or removal. This allows both sides to split identical
+	 * data into identical chunks, without having to agree on offsets.
+	 *
+	 * @param eof true if no data follows after len bytes.
+	 * @return The length of the chunk or -1 if more data is needed to find its end.
+	 */
+	protected static int chunkBoundary(byte[] data, int off, int len, boolean eof) {
+		final int end = off + Math.min(len, CHUNK_SIZE_MAX);
+		long hash = 0;
+
+		for (int i = off + CHUNK_SIZE_MIN; i < end; i++) {
+			hash = (hash << 1) + GEAR[data[i] & 0xff];
+
+			if ((hash & CHUNK_MASK) == 0) {
+				return i + 1 - off;
+			}
+		}
+
+		if (len >= CHUNK_SIZE_MAX) {
+			return CHUNK_SIZE_MAX;
+		}
+
+		return eof ? len : -1;
+	}
+
 	protected static byte packetId() {
 		return _packetId;
 	}
@@ -1,13 +1,23 @@
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.CRC32;
 
@@ -19,36 +29,37 @@ class UDPClient extends UDPBase {
 	private static long _beginTime;
 	private static int _previousStatWidth;
 
-	protected static int _srtt = Integer.MAX_VALUE;
-	protected static int _rttvar;
-	protected static int _rto = PACKET_TIMEOUT_MAX;
+	private static int _flags;
+	private static short _transfer;
+	private static ByteBuffer _txd;
+	private static ByteBuffer _ctl = ByteBuffer.allocate(2 + 1 + 1 + CHUNK_HASH_SIZE + 4);
+	private static long _pendingHole;
+	private static int _pendingCopyBlock;
+	private static int _pendingCopyCount;
+
+	private static int _blockSize;
+	private static int _blockCount;
+	private static byte[] _signatureStrong;
+	private static HashMap<Integer, Integer> _signatureHeads;
+	private static int[] _signatureChain;
+
+	protected static RetransmissionTimer _rtx = new RetransmissionTimer();
+
+	private static final int BUSY_BACKOFF_MAX = 8000;
+
+	// the attempts of an extended handshake before assuming a server of the original protocol
+	private static final int EXTENDED_HANDSHAKE_RETRIES = 3;
+
+	// what is known about the protocol of the server from previous transfers
+	private static boolean _extendedServer;
+	private static boolean _legacyServer;
 
 	static {
 		_sessionId = (short) _rand.nextInt(0x10000);
 	}
 
 	protected static void updateRtoWithRtt(int rtt) {
-		if (rtt < 0) {
-			return;
-		}
-
-		/*
-		 * This implements sth. similar to the Retransmission
-		 * Timer specified in RFC 6298 for TCP.
-		 */
-		if (_srtt == Integer.MAX_VALUE) {
-			_rttvar = rtt / 2;
-			_srtt = rtt;
-		} else {
-			_rttvar = (3 * _rttvar + Math.abs(_srtt - rtt)) / 4;
-			_srtt = (7 * _srtt + rtt) / 8;
-		}
-
-		_rto = _srtt + 4 * _rttvar;
-
-		if (_rto > PACKET_TIMEOUT_MAX) {
-			_rto = PACKET_TIMEOUT_MAX;
-		}
+		_rtx.updateWithRtt(rtt);
 
 		try {
 			/*
@@ -57,38 +68,30 @@ class UDPClient extends UDPBase {
 			 * to sleep, but are there bugs out there in the wild?
 			 * If so, the algorithm wouldn't work.
 			 */
-			_socket.setSoTimeout(_rto);
+			_socket.setSoTimeout(_rtx.rto());
 		} catch (Exception e) {
 		}
 	}
 
 	protected static void updateRtoWithTimeout(int factor) {
-		if (factor < 0) {
-			return;
-		}
-
-		/*
-		 * Grow linear for the first 2 losses and after that exponential.
-		 * This should give us a small performance boost
-		 * in LANs where delays are pretty stable.
-		 */
-		if (factor < 3) {
-			_rto += factor * Math.max(1, _rttvar);
-		} else {
-			_rto *= 2;
-		}
-
-		if (_rto > PACKET_TIMEOUT_MAX) {
-			_rto = PACKET_TIMEOUT_MAX;
-		}
+		_rtx.updateWithTimeout(factor);
 
 		try {
-			_socket.setSoTimeout(_rto);
+			_socket.setSoTimeout(_rtx.rto());
 		} catch (Exception e) {
 		}
 	}
 
 	private static void send(ByteBuffer txd) throws IOException {
+		UDPClient.send(txd, PACKET_RETRY_MAX);
+	}
+
+	/**
+	 * Sends a packet until it's acknowledged, giving up after the given amount of attempts.
+	 *
+	 * @throws SocketTimeoutException if the last attempt timed out.
+	 */
+	private static void send(ByteBuffer txd, int retries) throws IOException {
 		DatagramPacket txp = new DatagramPacket(txd.array(), txd.limit(), _targetAddress);
 		int i = 0;
 
@@ -103,7 +106,8 @@ class UDPClient extends UDPBase {
 					_socket.receive(_rxp);
 					_rxd.limit(_rxp.getLength());
 
-					if (_rxd.limit() != 3) {
+					// the extended protocol may append a payload to ACKs
+					if (_rxd.limit() < 3) {
 						throw new IOException("ACK: invalid size");
 					}
 
@@ -115,7 +119,7 @@ class UDPClient extends UDPBase {
 					}
 
 					if (packetId != UDPClient.packetId()) {
-						if (++i >= UDPBase.PACKET_RETRY_MAX) {
+						if (++i >= retries) {
 							throw new IOException("ACK: too many invalid responses");
 						}
 
@@ -135,7 +139,7 @@ class UDPClient extends UDPBase {
 
 				break;
 			} catch (IOException e) {
-				if (++i >= UDPBase.PACKET_RETRY_MAX) {
+				if (++i >= retries) {
 					throw e;
 				}
 
@@ -146,6 +150,671 @@ class UDPClient extends UDPBase {
 		}
 	}
 
+	/**
+	 * Sends a handshake and waits for its ACK.
+	 *
+	 * A busy server answers a handshake with FLAG_BACKOFF with FRAME_BUSY instead,
+	 * in which case the handshake is repeated after the time it asked for.
+	 * Each further FRAME_BUSY doubles the time to wait, with some random jitter added,
+	 * so that clients turned away at the same time don't all come back at once.
+	 *
+	 * @param retries The amount of attempts if the handshake stays unanswered.
+	 * @throws IOException if the server is still busy after PACKET_RETRY_MAX attempts.
+	 */
+	private static void sendHandshake(ByteBuffer txd, int retries) throws IOException {
+		long backoff = 0;
+
+		for (int i = 1;; i++) {
+			UDPClient.send(txd, retries);
+
+			final boolean busy = _rxd.remaining() == 1 + 4 && _rxd.get(_rxd.position()) == FRAME_BUSY;
+
+			if (!busy && UDPClient.isHandshakeAck()) {
+				return;
+			}
+
+			if (i >= PACKET_RETRY_MAX) {
+				throw new IOException(busy ? "server busy" : "ACK: too many invalid responses");
+			}
+
+			// a late ACK of the previous transfer, the server answers the repeated handshake
+			if (!busy) {
+				continue;
+			}
+
+			backoff = Math.min(Math.max(_rxd.getInt(_rxd.position() + 1), 2 * backoff), BUSY_BACKOFF_MAX);
+
+			try {
+				Thread.sleep(backoff + _rand.nextInt((int) backoff / 2 + 1));
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+
+	/**
+	 * Checks whether the ACK in _rxd answers the handshake of the current transfer.
+	 * Servers of the original protocol don't answer extended handshakes at all.
+	 */
+	private static boolean isHandshakeAck() {
+		final int pos = _rxd.position();
+		return _rxd.remaining() >= 4 + 2 && (_rxd.getInt(pos) & FLAG_TRANSFER) != 0 && _rxd.getShort(pos + 4) == _transfer;
+	}
+
+	private static int readFully(FileInputStream fin, byte[] b, int off, int len) throws IOException {
+		int total = 0;
+
+		while (total < len) {
+			int n = fin.read(b, off + total, len - total);
+
+			if (n == -1) {
+				break;
+			}
+
+			total += n;
+		}
+
+		return total == 0 && len > 0 ? -1 : total;
+	}
+
+	private static void beginFrame(ByteBuffer txd, byte type) {
+		txd.clear();
+		txd.putShort(_sessionId);
+		txd.put(UDPClient.setPacketIdToNext());
+		txd.put(type);
+	}
+
+	private static void flushHole() throws IOException {
+		if (_pendingHole > 0) {
+			UDPClient.beginFrame(_ctl, FRAME_HOLE);
+			_ctl.putLong(_pendingHole);
+			_ctl.limit(_ctl.position());
+
+			UDPClient.send(_ctl);
+
+			_pendingHole = 0;
+		}
+	}
+
+	private static void flushCopy() throws IOException {
+		if (_pendingCopyCount > 0) {
+			UDPClient.beginFrame(_ctl, FRAME_COPY);
+			_ctl.putInt(_pendingCopyBlock);
+			_ctl.putInt(_pendingCopyCount);
+			_ctl.limit(_ctl.position());
+
+			UDPClient.send(_ctl);
+
+			_pendingCopyCount = 0;
+		}
+	}
+
+	/**
+	 * Sends a range of file contents as literal data.
+	 *
+	 * If FLAG_SPARSE was accepted by the server, packets which would only
+	 * contain zeros are not sent. Instead consecutive runs of them are
+	 * merged into a single FRAME_HOLE, which tells the server to skip
+	 * over that range, leaving a sparse region in the file.
+	 * The CRC32 still covers those zeros, since the server feeds
+	 * the same amount of zeros into its own checksum.
+	 *
+	 * Java offers no way to query SEEK_HOLE/SEEK_DATA,
+	 * which is why holes are detected by inspecting the data itself.
+	 */
+	private static void sendLiteral(byte[] data, int off, int len) throws IOException {
+		// a pending FRAME_COPY may still be extended by the next block, unless there's data in between
+		if (len == 0) {
+			return;
+		}
+
+		UDPClient.flushCopy();
+
+		final int headerSize = 2 + 1 + 1;
+
+		while (len > 0) {
+			final int n = Math.min(len, _txd.capacity() - headerSize);
+
+			if ((_flags & FLAG_SPARSE) != 0 && UDPClient.isZero(data, off, n)) {
+				_pendingHole += n;
+			} else {
+				UDPClient.flushHole();
+
+				UDPClient.beginFrame(_txd, FRAME_DATA);
+				_txd.put(data, off, n);
+				_txd.limit(_txd.position());
+
+				UDPClient.send(_txd);
+			}
+
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Tells the server to copy a block of its existing file.
+	 *
+	 * Consecutive blocks are merged into a single FRAME_COPY,
+	 * up to a total of COPY_BYTES_MAX.
+	 */
+	private static void sendCopy(int block) throws IOException {
+		UDPClient.flushHole();
+
+		if (_pendingCopyCount > 0 && _pendingCopyBlock + _pendingCopyCount == block && (long) (_pendingCopyCount + 1) * _blockSize <= COPY_BYTES_MAX) {
+			_pendingCopyCount++;
+		} else {
+			UDPClient.flushCopy();
+
+			_pendingCopyBlock = block;
+			_pendingCopyCount = 1;
+		}
+	}
+
+	/**
+	 * Fetches the signatures of all full blocks of the server's existing file.
+	 *
+	 * Each FRAME_SIGNATURES requests the signatures starting at a block index
+	 * and the server answers with as many as fit into the ACK.
+	 * The weak checksums are indexed in _signatureHeads and _signatureChain,
+	 * which form a hash table with chaining over the block indices.
+	 */
+	private static void fetchSignatures() throws IOException {
+		_signatureStrong = new byte[_blockCount * 16];
+		_signatureHeads = new HashMap<>();
+		_signatureChain = new int[_blockCount];
+
+		int block = 0;
+
+		while (block < _blockCount) {
+			UDPClient.beginFrame(_ctl, FRAME_SIGNATURES);
+			_ctl.putInt(block);
+			_ctl.limit(_ctl.position());
+
+			UDPClient.send(_ctl);
+
+			final int count = _rxd.remaining() >= 2 ? _rxd.getShort() : 0;
+
+			if (count <= 0 || count > _blockCount - block || _rxd.remaining() != count * SIGNATURE_SIZE) {
+				throw new IOException("ACK: invalid signatures");
+			}
+
+			for (int i = 0; i < count; i++, block++) {
+				final int weak = _rxd.getInt();
+				_rxd.get(_signatureStrong, block * 16, 16);
+
+				final Integer head = _signatureHeads.put(weak, block);
+				_signatureChain[block] = head != null ? head : -1;
+			}
+		}
+	}
+
+	/**
+	 * Searches the server's existing file for a block matching the given window.
+	 *
+	 * If multiple blocks match, the one continuing the pending FRAME_COPY is preferred.
+	 *
+	 * @return The index of the matching block or -1.
+	 */
+	private static int findBlock(int weak, byte[] data, int off, MessageDigest md) {
+		final Integer head = _signatureHeads.get(weak);
+
+		if (head == null) {
+			return -1;
+		}
+
+		md.update(data, off, _blockSize);
+		final byte[] strong = md.digest();
+		final int next = _pendingCopyCount > 0 ? _pendingCopyBlock + _pendingCopyCount : -1;
+		int match = -1;
+
+		for (int block = head; block != -1; block = _signatureChain[block]) {
+			if (Arrays.equals(strong, 0, 16, _signatureStrong, block * 16, block * 16 + 16)) {
+				if (block == next) {
+					return block;
+				}
+
+				match = block;
+			}
+		}
+
+		return match;
+	}
+
+	/**
+	 * Sends the file contents as literal data or, if FLAG_DELTA was accepted
+	 * by the server, as a delta against the server's existing file.
+	 *
+	 * For a delta a window of _blockSize bytes is slid over the file,
+	 * similar to rsync, and each window matching a block of the
+	 * server's file is sent as a FRAME_COPY instead of literal data.
+	 * Literal data is sent as soon as it fills a whole packet, which is why
+	 * the buffer never needs to hold much more than two blocks.
+	 */
+	private static void sendData(FileInputStream fin, CRC32 cc) throws IOException {
+		final boolean delta = (_flags & FLAG_DELTA) != 0;
+		final int literalMax = _txd.capacity() - (2 + 1 + 1);
+		final int windowSize = delta ? _blockSize : 0;
+		final byte[] buf = new byte[2 * windowSize + 64 * 1024];
+		MessageDigest md = null;
+
+		if (delta) {
+			try {
+				md = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException(e);
+			}
+
+			UDPClient.fetchSignatures();
+		}
+
+		int filled = 0;
+		int literal = 0;
+		int pos = 0;
+		int a = 0;
+		int b = 0;
+		boolean rolling = false;
+		boolean eof = false;
+
+		while (true) {
+			// make sure there is at least one byte past the window to roll over
+			if (!eof && filled - pos <= windowSize) {
+				if (literal > 0) {
+					System.arraycopy(buf, literal, buf, 0, filled - literal);
+					filled -= literal;
+					pos -= literal;
+					literal = 0;
+				}
+
+				final int n = UDPClient.readFully(fin, buf, filled, buf.length - filled);
+
+				if (n == -1) {
+					eof = true;
+				} else {
+					if (cc != null) {
+						cc.update(buf, filled, n);
+					}
+
+					filled += n;
+					_finishedBytes.addAndGet(n);
+				}
+
+				continue;
+			}
+
+			if (!delta || filled - pos < windowSize) {
+				/*
+				 * Without delta everything is literal data, but only whole packets are
+				 * sent until the end of the file is reached. With delta we only get here
+				 * at the end of the file, where the rest is too short to match a block.
+				 */
+				final int end = eof ? filled : literal + (filled - literal) / literalMax * literalMax;
+				UDPClient.sendLiteral(buf, literal, end - literal);
+				literal = end;
+				pos = filled;
+
+				if (eof) {
+					break;
+				}
+
+				continue;
+			}
+
+			if (!rolling) {
+				final int weak = UDPClient.weakChecksum(buf, pos, windowSize);
+				a = weak & 0xffff;
+				b = weak >>> 16;
+				rolling = true;
+			}
+
+			final int weak = (a & 0xffff) | (b << 16);
+
+			// zeros are cheaper to send as a hole than to copy them (only all-zero windows have a weak checksum of 0)
+			if (weak == 0 && (_flags & FLAG_SPARSE) != 0 && UDPClient.isZero(buf, pos, windowSize)) {
+				pos += windowSize;
+				UDPClient.sendLiteral(buf, literal, pos - literal);
+				literal = pos;
+				rolling = false;
+				continue;
+			}
+
+			final int block = UDPClient.findBlock(weak, buf, pos, md);
+
+			if (block != -1) {
+				UDPClient.sendLiteral(buf, literal, pos - literal);
+				UDPClient.sendCopy(block);
+				pos += windowSize;
+				literal = pos;
+				rolling = false;
+				continue;
+			}
+
+			if (pos - literal >= literalMax) {
+				UDPClient.sendLiteral(buf, literal, literalMax);
+				literal += literalMax;
+			}
+
+			if (pos + windowSize < filled) {
+				final int out = buf[pos] & 0xff;
+				final int in = buf[pos + windowSize] & 0xff;
+				a += in - out;
+				b += a - windowSize * out;
+				pos++;
+			} else {
+				// the window reached the end of the file without matching
+				pos = filled;
+			}
+		}
+
+	}
+
+	/**
+	 * Sends the file contents split into content-defined chunks.
+	 *
+	 * The hashes of a batch of chunks are sent in a single FRAME_QUERY,
+	 * which the server answers with a byte for each of them,
+	 * telling whether its chunk store already contains that chunk.
+	 * Chunks which are present are then sent as a FRAME_REFERENCE
+	 * and all others as literal data.
+	 */
+	private static void sendChunks(FileInputStream fin, CRC32 cc) throws IOException {
+		final int batchMax = (_txd.capacity() - (2 + 1 + 1)) / CHUNK_HASH_SIZE;
+		final byte[] buf = new byte[(batchMax + 1) * CHUNK_SIZE_MAX];
+		final int[] offsets = new int[batchMax + 1];
+		final byte[] hashes = new byte[batchMax * CHUNK_HASH_SIZE];
+		final boolean[] zero = new boolean[batchMax];
+		final byte[] present = new byte[batchMax];
+		MessageDigest md;
+
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+
+		int filled = 0;
+		boolean eof = false;
+
+		while (true) {
+			while (!eof && filled < buf.length) {
+				final int n = UDPClient.readFully(fin, buf, filled, buf.length - filled);
+
+				if (n == -1) {
+					eof = true;
+				} else {
+					if (cc != null) {
+						cc.update(buf, filled, n);
+					}
+
+					filled += n;
+					_finishedBytes.addAndGet(n);
+				}
+			}
+
+			if (filled == 0) {
+				break;
+			}
+
+			int count = 0;
+			int queried = 0;
+			int pos = 0;
+
+			while (count < batchMax && pos < filled) {
+				final int n = UDPClient.chunkBoundary(buf, pos, filled - pos, eof);
+
+				if (n == -1) {
+					break;
+				}
+
+				// sending zeros as a hole is cheaper than asking for them
+				zero[count] = (_flags & FLAG_SPARSE) != 0 && UDPClient.isZero(buf, pos, n);
+
+				if (!zero[count]) {
+					md.update(buf, pos, n);
+					System.arraycopy(md.digest(), 0, hashes, count * CHUNK_HASH_SIZE, CHUNK_HASH_SIZE);
+					queried++;
+				}
+
+				offsets[count++] = pos;
+				pos += n;
+			}
+
+			offsets[count] = pos;
+
+			if (queried > 0) {
+				UDPClient.flushHole();
+
+				UDPClient.beginFrame(_txd, FRAME_QUERY);
+
+				for (int i = 0; i < count; i++) {
+					if (!zero[i]) {
+						_txd.put(hashes, i * CHUNK_HASH_SIZE, CHUNK_HASH_SIZE);
+					}
+				}
+
+				_txd.limit(_txd.position());
+
+				UDPClient.send(_txd);
+
+				if (_rxd.remaining() != queried) {
+					throw new IOException("ACK: invalid query response");
+				}
+
+				_rxd.get(present, 0, queried);
+			}
+
+			for (int i = 0, j = 0; i < count; i++) {
+				final int off = offsets[i];
+				final int len = offsets[i + 1] - off;
+
+				if (zero[i] || present[j++] == 0) {
+					UDPClient.sendLiteral(buf, off, len);
+				} else {
+					UDPClient.flushHole();
+
+					UDPClient.beginFrame(_ctl, FRAME_REFERENCE);
+					_ctl.put(hashes, i * CHUNK_HASH_SIZE, CHUNK_HASH_SIZE);
+					_ctl.putInt(len);
+					_ctl.limit(_ctl.position());
+
+					UDPClient.send(_ctl);
+				}
+			}
+
+			System.arraycopy(buf, pos, buf, 0, filled - pos);
+			filled -= pos;
+		}
+	}
+
+	/**
+	 * Sends the block checksums and the final FRAME_END.
+	 *
+	 * The server answers the FRAME_END with the indices of all blocks
+	 * whose checksums don't match the received data. Those are sent again
+	 * in full, followed by another FRAME_END, until all blocks match.
+	 * While the server is still verifying, it answers with VERIFYING instead.
+	 */
+	private static void sendChecksums(FileChannel channel, BlockChecksums checksums) throws IOException {
+		final int count = checksums.count();
+		final int checksumsMax = (_txd.capacity() - (2 + 1 + 1) - 4) / 4;
+
+		for (int block = 0; block < count;) {
+			UDPClient.beginFrame(_txd, FRAME_CHECKSUMS);
+			_txd.putInt(block);
+
+			for (int i = 0; i < checksumsMax && block < count; i++, block++) {
+				_txd.putInt(checksums.get(block));
+			}
+
+			_txd.limit(_txd.position());
+
+			UDPClient.send(_txd);
+		}
+
+		final int crc;
+
+		try {
+			crc = checksums.combined().join();
+		} catch (CompletionException e) {
+			throw new IOException("failed to checksum the file", e.getCause());
+		}
+
+		final int literalMax = _txd.capacity() - (2 + 1 + 1);
+		final ByteBuffer buf = ByteBuffer.allocate(CHECKSUM_BLOCK_SIZE);
+
+		while (true) {
+			UDPClient.beginFrame(_ctl, FRAME_END);
+			_ctl.putInt(crc);
+			_ctl.limit(_ctl.position());
+
+			UDPClient.send(_ctl);
+
+			// the same FRAME_END is repeated, backing off, until the server is done verifying
+			for (int wait = _rtx.rto(); _rxd.remaining() == 2 && _rxd.getShort(_rxd.position()) == VERIFYING; wait = Math.min(2 * wait, PACKET_TIMEOUT_MAX)) {
+				try {
+					Thread.sleep(wait);
+				} catch (InterruptedException e) {
+				}
+
+				UDPClient.send(_ctl);
+			}
+
+			final int corrupted = _rxd.remaining() >= 2 ? _rxd.getShort() : -1;
+
+			if (corrupted < 0 || _rxd.remaining() != corrupted * 4) {
+				throw new IOException("ACK: invalid end response");
+			}
+
+			if (corrupted == 0) {
+				break;
+			}
+
+			// sending the blocks below overwrites _rxd
+			final int[] blocks = new int[corrupted];
+
+			for (int i = 0; i < corrupted; i++) {
+				blocks[i] = _rxd.getInt();
+
+				if (blocks[i] < 0 || blocks[i] >= count) {
+					throw new IOException("ACK: invalid corrupted block");
+				}
+			}
+
+			for (int block : blocks) {
+				UDPClient.beginFrame(_ctl, FRAME_REPAIR);
+				_ctl.putInt(block);
+				_ctl.limit(_ctl.position());
+
+				UDPClient.send(_ctl);
+
+				buf.clear();
+				buf.limit(checksums.length(block));
+
+				while (buf.hasRemaining()) {
+					if (channel.read(buf, checksums.offset(block) + buf.position()) == -1) {
+						throw new IOException("file truncated");
+					}
+				}
+
+				for (int off = 0; off < buf.limit(); off += literalMax) {
+					final int n = Math.min(buf.limit() - off, literalMax);
+
+					UDPClient.beginFrame(_txd, FRAME_DATA);
+					_txd.put(buf.array(), off, n);
+					_txd.limit(_txd.position());
+
+					UDPClient.send(_txd);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends the file contents using the frames of the extended protocol.
+	 *
+	 * If FLAG_CRC32C was accepted by the server, the block checksums
+	 * are computed by worker threads while the file is being sent,
+	 * instead of updating a CRC32 with every packet.
+	 */
+	private static void sendFramed(FileInputStream fin, CRC32 cc) throws IOException {
+		BlockChecksums checksums = null;
+
+		if ((_flags & FLAG_CRC32C) != 0) {
+			checksums = new BlockChecksums(fin.getChannel(), _totalBytes);
+
+			for (int block = 0; block < checksums.count(); block++) {
+				checksums.submit(block);
+			}
+
+			cc = null;
+		}
+
+		if ((_flags & FLAG_CHUNKS) != 0 && (_flags & FLAG_DELTA) == 0) {
+			UDPClient.sendChunks(fin, cc);
+		} else {
+			UDPClient.sendData(fin, cc);
+		}
+
+		UDPClient.flushCopy();
+		UDPClient.flushHole();
+
+		if (checksums != null) {
+			UDPClient.sendChecksums(fin.getChannel(), checksums);
+			return;
+		}
+
+		UDPClient.beginFrame(_ctl, FRAME_END);
+		_ctl.putInt((int) cc.getValue());
+		_ctl.limit(_ctl.position());
+
+		UDPClient.send(_ctl);
+	}
+
+	/**
+	 * Sends the file contents using the original protocol,
+	 * which appends the CRC32 to the data of the last packet.
+	 */
+	private static void sendLegacy(FileInputStream fin, ByteBuffer txd, CRC32 cc) throws IOException {
+		while (true) {
+			txd.clear();
+			txd.putShort(_sessionId);
+			txd.put(UDPServer.setPacketIdToNext());
+
+			int remaining = txd.remaining();
+			int n = fin.read(txd.array(), txd.position(), remaining);
+
+			if (n == -1) {
+				break;
+			}
+
+			cc.update(txd.array(), txd.position(), n);
+			txd.position(txd.position() + n);
+
+			if (n < remaining) {
+				remaining = txd.remaining();
+				n = fin.read(txd.array(), txd.position(), remaining);
+
+				if (n != -1) {
+					cc.update(txd.array(), txd.position(), n);
+					txd.position(txd.position() + n);
+				} else if (remaining >= 4) {
+					// the CRC32 will be appended below, outside of the loop
+					break;
+				}
+			}
+
+			txd.limit(txd.position());
+
+			UDPClient.send(txd);
+
+			_finishedBytes.addAndGet(n);
+		}
+
+		txd.putInt((int) cc.getValue());
+		txd.limit(txd.position());
+
+		UDPClient.send(txd);
+	}
+
 	private static String formatSize(double size) {
 		final String prefixes = "kMGTPE";
 		double sizeExp = Math.floor(Math.log(size) / Math.log(1000));
@@ -217,32 +886,169 @@ class UDPClient extends UDPBase {
 		_previousStatWidth = statWidth;
 	}
 
-	public static void main(String args[]) throws Exception {
-		if (args.length != 3) {
-			System.out.println("Usage: client-udp <host> <port> <filepath>");
-			System.exit(1);
+	/**
+	 * Receives the file contents from the server, which
+	 * sends them using the frames of the extended protocol.
+	 *
+	 * This is the counterpart of the server's upload session,
+	 * which is why every frame is acknowledged the same way.
+	 */
+	private static void receiveFramed(RandomAccessFile fout, CRC32 cc) throws IOException {
+		final ByteBuffer ackd = ByteBuffer.allocate(3);
+		final DatagramPacket ackp = new DatagramPacket(ackd.array(), ackd.capacity(), _targetAddress);
+		long remaining = _totalBytes;
+		boolean finished = false;
+
+		_socket.setSoTimeout(PACKET_TIMEOUT_SERVER);
+
+		while (!finished) {
+			_rxd.clear();
+
+			try {
+				_socket.receive(_rxp);
+			} catch (SocketTimeoutException e) {
+				throw new IOException("timeout");
+			}
+
+			_rxd.limit(_rxp.getLength());
+
+			if (!_rxp.getSocketAddress().equals(_targetAddress)) {
+				continue;
+			}
+
+			if (_rxd.limit() < 4) {
+				throw new IOException("too small");
+			}
+
+			short d_sessionId = _rxd.getShort();
+			byte d_packetId = _rxd.get();
+
+			if (d_sessionId != _sessionId) {
+				throw new IOException("invalid session id");
+			}
+
+			ackd.clear();
+			ackd.putShort(_sessionId);
+			ackd.put(d_packetId);
+
+			if (d_packetId != UDPClient.nextPacketId()) {
+				_socket.send(ackp);
+				continue;
+			}
+
+			final byte d_type = _rxd.get();
+
+			// a late ACK of the handshake has the same packet id as every second frame, but its flags start with 0
+			if (d_type == 0) {
+				continue;
+			}
+
+			UDPClient.setPacketId(d_packetId);
+
+			switch (d_type) {
+			case FRAME_DATA: {
+				final int dataLength = _rxd.remaining();
+
+				if (dataLength > remaining) {
+					throw new IOException("too much data");
+				}
+
+				cc.update(_rxd.array(), _rxd.position(), dataLength);
+				fout.write(_rxd.array(), _rxd.position(), dataLength);
+				remaining -= dataLength;
+				_finishedBytes.addAndGet(dataLength);
+				break;
+			}
+			case FRAME_HOLE: {
+				if ((_flags & FLAG_SPARSE) == 0 || _rxd.remaining() != 8) {
+					throw new IOException("invalid hole frame");
+				}
+
+				final long holeLength = _rxd.getLong();
+
+				if (holeLength <= 0 || holeLength > remaining) {
+					throw new IOException("invalid hole length");
+				}
+
+				UDPClient.updateWithZeros(cc, holeLength);
+				fout.seek(fout.getFilePointer() + holeLength);
+				remaining -= holeLength;
+				_finishedBytes.addAndGet(holeLength);
+				break;
+			}
+			case FRAME_END: {
+				if (_rxd.remaining() != 4) {
+					throw new IOException("invalid end frame");
+				}
+
+				if (remaining != 0) {
+					throw new IOException("missing data");
+				}
+
+				if (_rxd.getInt() != (int) cc.getValue()) {
+					throw new IOException("checksum not equal");
+				}
+
+				// a trailing hole isn't followed by any write which would extend the file
+				if (fout.length() < _totalBytes) {
+					fout.setLength(_totalBytes);
+				}
+
+				finished = true;
+				break;
+			}
+			default:
+				throw new IOException("invalid frame type");
+			}
+
+			_socket.send(ackp);
 		}
 
-		_socket = new DatagramSocket();
-		_socket.setSoTimeout(_rto);
+		/*
+		 * The server sends the end frame again if our ACK got lost.
+		 * Stick around until it had enough time to do so.
+		 */
+		_socket.setSoTimeout(Math.min(2 * _rtx.rto(), PACKET_TIMEOUT_MAX));
 
 		try {
-			int port = Integer.parseInt(args[1]);
-			_targetAddress = new InetSocketAddress(args[0], port);
-		} catch (Exception e) {
-			UDPClient.error("[error] failed to parse host/port: " + e.getMessage());
-			System.exit(2);
-		}
+			while (true) {
+				_socket.receive(_rxp);
 
-		if (_targetAddress.isUnresolved()) {
-			UDPClient.error("[error] cannot resolve: " + args[0] + ':' + args[1]);
-			System.exit(2);
+				if (_rxp.getSocketAddress().equals(_targetAddress) && _rxp.getLength() >= 3) {
+					_socket.send(ackp);
+				}
+			}
+		} catch (SocketTimeoutException e) {
 		}
+	}
+
+	/**
+	 * Resets the state of the previous transfer.
+	 *
+	 * The session id and the RTO are kept, so that further transfers
+	 * neither start with a PACKET_TIMEOUT_MAX RTO nor need a new session.
+	 * Only the transfer number is incremented, see FLAG_TRANSFER.
+	 */
+	private static void beginTransfer() {
+		UDPClient.resetPacketId();
+
+		_transfer++;
+
+		_flags = 0;
+		_pendingHole = 0;
+		_pendingCopyCount = 0;
+		_finishedBytes.set(0);
+		_previousBytes = 0;
+		_previousStatWidth = 0;
+		_beginTime = System.nanoTime();
+		_previousTime = _beginTime;
+	}
 
-		final File file = new File(args[2]);
+	private static void upload(String path) throws Exception {
+		final File file = new File(path);
 
 		if (!file.isFile()) {
-			UDPClient.error("[error] file not found or not readable: " + args[2]);
+			UDPClient.error("[error] file not found or not readable: " + path);
 			System.exit(3);
 		}
 
@@ -254,6 +1060,7 @@ class UDPClient extends UDPBase {
 			return;
 		}
 
+		UDPClient.beginTransfer();
 		_totalBytes = file.length();
 
 		// 40 Byte IPv6 Header size + 8 Byte UDP Header size
@@ -267,11 +1074,12 @@ class UDPClient extends UDPBase {
 		try (final FileInputStream fin = new FileInputStream(file)) {
 			System.out.print("Connecting to " + _targetAddress.getAddress().getHostAddress() + ":" + _targetAddress.getPort() + "... ");
 
-			_beginTime = System.nanoTime();
-			_previousTime = _beginTime;
-
-			// the handshake header fields
-			txd = ByteBuffer.allocate(2 + 1 + 5 + 8 + 2 + filenameData.length + 4);
+			/*
+			 * The handshake header fields, followed by as much of the file as fits
+			 * into the packet. If the server accepts FLAG_EARLY_DATA, this saves
+			 * the round trip of the handshake and small files are sent right away.
+			 */
+			txd = ByteBuffer.allocate(Math.max(payloadSize, 2 + 1 + 5 + 8 + 2 + filenameData.length + 4 + 2 + 4));
 			txd.putShort(_sessionId);
 			txd.put(UDPServer.packetId());
 			txd.put(new byte[] { 'S', 't', 'a', 'r', 't' });
@@ -279,15 +1087,108 @@ class UDPClient extends UDPBase {
 			txd.putShort((short) filenameData.length);
 			txd.put(filenameData);
 
+			final int flagsOffset = txd.position();
+			txd.putInt(FLAG_SPARSE | FLAG_DELTA | FLAG_CHUNKS | FLAG_CRC32C | FLAG_BACKOFF | FLAG_TRANSFER);
+			txd.putShort(_transfer);
+
+			final int earlyOffset = txd.position();
+			final int earlyLength = Math.max(0, UDPClient.readFully(fin, txd.array(), earlyOffset, txd.remaining() - 4));
+
+			if (earlyLength > 0) {
+				txd.putInt(flagsOffset, txd.getInt(flagsOffset) | FLAG_EARLY_DATA);
+				txd.position(earlyOffset + earlyLength);
+			}
+
 			cc.update(txd.array(), 0, txd.position());
 
 			txd.putInt((int) cc.getValue());
+			txd.limit(txd.position());
 
-			UDPClient.send(txd);
+			boolean extended = !_legacyServer;
+
+			if (extended) {
+				try {
+					UDPClient.sendHandshake(txd, _extendedServer ? PACKET_RETRY_MAX : EXTENDED_HANDSHAKE_RETRIES);
+					_extendedServer = true;
+				} catch (SocketTimeoutException e) {
+					if (_extendedServer) {
+						throw e;
+					}
+
+					extended = false;
+					_legacyServer = true;
+				}
+			}
+
+			/*
+			 * A server of the original protocol silently drops the extended handshake.
+			 * The original one uses a new session id, in case the extended one did
+			 * arrive after all and only its ACKs got lost.
+			 */
+			if (!extended) {
+				_sessionId++;
+
+				txd = ByteBuffer.allocate(2 + 1 + 5 + 8 + 2 + filenameData.length + 4);
+				txd.putShort(_sessionId);
+				txd.put(UDPClient.packetId());
+				txd.put(new byte[] { 'S', 't', 'a', 'r', 't' });
+				txd.putLong(_totalBytes);
+				txd.putShort((short) filenameData.length);
+				txd.put(filenameData);
+
+				cc.reset();
+				cc.update(txd.array(), 0, txd.position());
+
+				txd.putInt((int) cc.getValue());
+
+				UDPClient.send(txd);
+			}
+
+			/*
+			 * Servers supporting the extended protocol answer
+			 * with the accepted subset of the requested flags.
+			 */
+			extended = extended && _rxd.remaining() >= 4;
+			_flags = extended ? _rxd.getInt() : 0;
+
+			if ((_flags & FLAG_TRANSFER) != 0) {
+				_rxd.getShort();
+			}
+
+			// the server has an existing file of the same name to apply a delta to
+			if ((_flags & FLAG_DELTA) != 0) {
+				if (_rxd.remaining() != 8) {
+					throw new IOException("ACK: invalid delta parameters");
+				}
+
+				_blockSize = _rxd.getInt();
+				_blockCount = _rxd.getInt();
+
+				if (_blockSize <= 0 || _blockSize > DELTA_BLOCK_SIZE_MAX || _blockCount <= 0) {
+					throw new IOException("ACK: invalid delta parameters");
+				}
+			}
 
 			System.out.printf("connected.%nSending: '%s'%nLength: %,d (%s)%n%n", filename, _totalBytes, UDPClient.formatSize(_totalBytes));
 
 			cc.reset();
+
+			/*
+			 * Servers of the extended protocol either store the early data or drop the
+			 * handshake as invalid. The original handshake didn't carry it, so the
+			 * file is sent from its start again.
+			 */
+			if (!extended) {
+				fin.getChannel().position(0);
+			} else if (earlyLength > 0) {
+				if ((_flags & FLAG_EARLY_DATA) == 0) {
+					throw new IOException("ACK: early data not accepted");
+				}
+
+				cc.update(txd.array(), earlyOffset, earlyLength);
+				_finishedBytes.addAndGet(earlyLength);
+			}
+
 			txd = ByteBuffer.allocate(payloadSize);
 
 			timer.schedule(new TimerTask() {
@@ -297,50 +1198,103 @@ class UDPClient extends UDPBase {
 				}
 			}, 1000, 1000);
 
-			while (true) {
-				txd.clear();
-				txd.putShort(_sessionId);
-				txd.put(UDPServer.setPacketIdToNext());
+			if (_finishedBytes.get() == _totalBytes) {
+				// the whole file fit into the handshake, which completed the transfer
+			} else if (extended) {
+				_txd = txd;
+				UDPClient.sendFramed(fin, cc);
+			} else {
+				UDPClient.sendLegacy(fin, txd, cc);
+			}
 
-				int remaining = txd.remaining();
-				int n = fin.read(txd.array(), txd.position(), remaining);
+			UDPClient.showStats();
+			System.out.println();
+		} catch (Exception e) {
+			timer.cancel();
 
-				if (n == -1) {
-					break;
-				}
+			System.out.println();
+			System.out.println();
+			UDPClient.error("[error] " + e.getMessage());
 
-				cc.update(txd.array(), txd.position(), n);
-				txd.position(txd.position() + n);
+			System.exit(4);
+		}
 
-				if (n < remaining) {
-					remaining = txd.remaining();
-					n = fin.read(txd.array(), txd.position(), remaining);
+		timer.cancel();
+	}
 
-					if (n != -1) {
-						cc.update(txd.array(), txd.position(), n);
-						txd.position(txd.position() + n);
-					} else if (remaining >= 4) {
-						// the CRC32 will be appended below, outside of the loop
-						break;
-					}
-				}
+	private static void download(String path) throws Exception {
+		// the server only serves files from its working directory
+		final String filename = new File(path).getName();
+		final byte[] filenameData = filename.getBytes("UTF-8");
 
-				txd.limit(txd.position());
+		if (filenameData.length == 0 || filenameData.length > 255) {
+			UDPClient.error("[error] invalid Basename size: '" + filename + "'");
+			return;
+		}
 
-				UDPClient.send(txd);
+		UDPClient.beginTransfer();
 
-				_finishedBytes.addAndGet(n);
-			}
+		final File file = new File(filename);
+
+		if (file.exists()) {
+			UDPClient.error("[error] file already exists: " + filename);
+			System.exit(3);
+		}
+
+		// Java's CRC32 uses the IEEE 0x04C11DB7 polynomial
+		final CRC32 cc = new CRC32();
+		final Timer timer = new Timer();
+		ByteBuffer txd;
+
+		try (final RandomAccessFile fout = new RandomAccessFile(file, "rw")) {
+			System.out.print("Connecting to " + _targetAddress.getAddress().getHostAddress() + ":" + _targetAddress.getPort() + "... ");
+
+			// the handshake header fields
+			txd = ByteBuffer.allocate(2 + 1 + 5 + 2 + filenameData.length + 4 + 2 + 4);
+			txd.putShort(_sessionId);
+			txd.put(UDPClient.packetId());
+			txd.put(new byte[] { 'F', 'e', 't', 'c', 'h' });
+			txd.putShort((short) filenameData.length);
+			txd.put(filenameData);
+			txd.putInt(FLAG_SPARSE | FLAG_BACKOFF | FLAG_TRANSFER);
+			txd.putShort(_transfer);
+
+			cc.update(txd.array(), 0, txd.position());
 
 			txd.putInt((int) cc.getValue());
-			txd.limit(txd.position());
 
-			UDPClient.send(txd);
+			UDPClient.sendHandshake(txd, PACKET_RETRY_MAX);
+
+			if (_rxd.remaining() != 4 + 2 + 8) {
+				throw new IOException("ACK: invalid size");
+			}
+
+			_flags = _rxd.getInt();
+			_rxd.getShort();
+			_totalBytes = _rxd.getLong();
+
+			if (_totalBytes < 0) {
+				throw new IOException("file not found on the server: " + filename);
+			}
+
+			System.out.printf("connected.%nReceiving: '%s'%nLength: %,d (%s)%n%n", filename, _totalBytes, UDPClient.formatSize(_totalBytes));
+
+			cc.reset();
+
+			timer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					UDPClient.showStats();
+				}
+			}, 1000, 1000);
+
+			UDPClient.receiveFramed(fout, cc);
 
 			UDPClient.showStats();
 			System.out.println();
 		} catch (Exception e) {
 			timer.cancel();
+			file.delete();
 
 			System.out.println();
 			System.out.println();
@@ -351,4 +1305,123 @@ class UDPClient extends UDPBase {
 
 		timer.cancel();
 	}
+
+	/**
+	 * Sends a file to many servers at once, see UDPDistributor.
+	 *
+	 * @param hosts Either a multicast group or a comma separated list of hosts,
+	 *              each with an optional :port suffix.
+	 */
+	private static void distribute(String hosts, int port, String interfaceName, String path) throws Exception {
+		final File file = new File(path);
+
+		if (!file.isFile()) {
+			UDPClient.error("[error] file not found or not readable: " + path);
+			System.exit(3);
+		}
+
+		final ArrayList<InetSocketAddress> destinations = new ArrayList<>();
+
+		for (String host : hosts.split(",")) {
+			final int idx = host.lastIndexOf(':');
+			final InetSocketAddress address = idx != -1 ? new InetSocketAddress(host.substring(0, idx), Integer.parseInt(host.substring(idx + 1))) : new InetSocketAddress(host, port);
+
+			if (address.isUnresolved()) {
+				UDPClient.error("[error] cannot resolve: " + host);
+				System.exit(2);
+			}
+
+			destinations.add(address);
+		}
+
+		final boolean multicast = destinations.size() == 1 && destinations.get(0).getAddress().isMulticastAddress();
+
+		if (interfaceName != null) {
+			final NetworkInterface inet = NetworkInterface.getByName(interfaceName);
+
+			if (inet == null) {
+				UDPClient.error("[error] unknown interface: " + interfaceName);
+				System.exit(2);
+			}
+
+			_socket.setOption(StandardSocketOptions.IP_MULTICAST_IF, inet);
+		}
+
+		System.out.printf("Distributing: '%s'%nLength: %,d (%s)%n%n", file.getName(), file.length(), UDPClient.formatSize(file.length()));
+
+		try {
+			// 40 Byte IPv6 Header size + 8 Byte UDP Header size
+			final int failed = UDPDistributor.distribute(destinations, multicast, file, UDPClient.getMTU() - (40 + 8));
+
+			if (failed > 0) {
+				throw new IOException(failed + " receivers failed");
+			}
+		} catch (Exception e) {
+			UDPClient.error("[error] " + e.getMessage());
+			System.exit(4);
+		}
+	}
+
+	public static void main(String args[]) throws Exception {
+		final ArrayList<String> positional = new ArrayList<>();
+		boolean get = false;
+		boolean distribute = false;
+		String interfaceName = null;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--get")) {
+				get = true;
+			} else if (args[i].equals("--distribute")) {
+				distribute = true;
+			} else if (args[i].equals("--interface") && i + 1 < args.length) {
+				interfaceName = args[++i];
+			} else {
+				positional.add(args[i]);
+			}
+		}
+
+		args = positional.toArray(new String[positional.size()]);
+
+		if (args.length < 3 || (get && distribute) || (distribute && args.length != 3)) {
+			System.out.println("Usage: client-udp [--get] <host> <port> <filepath>...");
+			System.out.println("       client-udp --distribute [--interface <name>] <group|host[:port],...> <port> <filepath>");
+			System.exit(1);
+		}
+
+		_socket = new DatagramSocket();
+		_socket.setSoTimeout(_rtx.rto());
+
+		if (distribute) {
+			try {
+				UDPClient.distribute(args[0], Integer.parseInt(args[1]), interfaceName, args[2]);
+			} catch (NumberFormatException e) {
+				UDPClient.error("[error] failed to parse port: " + e.getMessage());
+				System.exit(2);
+			}
+
+			return;
+		}
+
+		try {
+			int port = Integer.parseInt(args[1]);
+			_targetAddress = new InetSocketAddress(args[0], port);
+		} catch (Exception e) {
+			UDPClient.error("[error] failed to parse host/port: " + e.getMessage());
+			System.exit(2);
+		}
+
+		if (_targetAddress.isUnresolved()) {
+			UDPClient.error("[error] cannot resolve: " + args[0] + ':' + args[1]);
+			System.exit(2);
+		}
+
+		// all files are transferred within the same session
+		for (int i = 2; i < args.length; i++) {
+			if (get) {
+				UDPClient.download(args[i]);
+			} else {
+				UDPClient.upload(args[i]);
+			}
+		}
+	}
 }
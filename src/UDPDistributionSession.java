@@ -0,0 +1,322 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * The receiving end of a file distributed to many servers at once by UDPDistributor.
+ *
+ * Data packets carry their index and may arrive in any order, possibly over multicast.
+ * Nothing is acknowledged, until the sender polls for the ranges which are missing.
+ * Since several servers on the same host receive the same multicast packets on the same
+ * port, each session identifies itself to the sender with a random receiver id.
+ *
+ * Answers to polls advertise a receive window, which limits the amount of packets the sender
+ * sends before the next poll. Like a TCP receiver with dynamic right-sizing, the socket buffer
+ * is grown whenever the sender used up most of the window within a single round.
+ */
+class UDPDistributionSession extends UDPSession {
+	private final SpoolFile _file;
+	private final long _length;
+	private final int _packetSize;
+	private final int _packetCount;
+	private final int _receiverId = _rand.nextInt();
+
+	private final RandomAccessFile _fout;
+	private final BlockChecksums _checksums;
+	private final BitSet _received = new BitSet();
+	private int _receivedCount;
+	private int _contiguous;
+	private int _pollEnd;
+	private int _pollCount;
+	private int _window;
+	private int _checksummed;
+
+	private CompletableFuture<Integer> _verification;
+	private int _endCrc;
+
+	/**
+	 * Opens the spool file and sends the ACK for the announcement.
+	 *
+	 * @throws Exception
+	 */
+	UDPDistributionSession(InetSocketAddress address, short id, SpoolFile file, long length, int packetSize, long now) throws Exception {
+		super(address, id);
+
+		_file = file;
+		_length = length;
+		_packetSize = packetSize;
+		_packetCount = (int) ((length + packetSize - 1) / packetSize);
+
+		try {
+			_fout = new RandomAccessFile(file.temp(), "rw");
+		} catch (Exception e) {
+			file.discard();
+			throw e;
+		}
+
+		_checksums = new BlockChecksums(_fout.getChannel(), length);
+
+		UDPDistributionSession.log("[log] receiving file '" + file.getName() + "' from " + address.getAddress().getHostAddress());
+
+		this.sendJoin();
+
+		_deadline = now + PACKET_TIMEOUT_SERVER;
+	}
+
+	@Override
+	void receive(ByteBuffer rxd, byte packetId, long now) throws Exception {
+		// other receivers might still be missing data, which isn't of any interest anymore
+		if (_finished) {
+			if (rxd.hasRemaining() && rxd.get() == FRAME_END) {
+				this.resendACK();
+			}
+
+			return;
+		}
+
+		if (!rxd.hasRemaining()) {
+			throw new Exception("too small");
+		}
+
+		if (_verification == null) {
+			_deadline = now + PACKET_TIMEOUT_SERVER;
+		}
+
+		final byte d_type = rxd.get();
+
+		switch (d_type) {
+		case 'M': {
+			// the first byte of the "Multi" signature: the sender didn't get our ACK
+			this.sendJoin();
+			break;
+		}
+		case FRAME_DATA: {
+			if (rxd.remaining() < 4) {
+				throw new Exception("invalid data frame");
+			}
+
+			final int index = rxd.getInt();
+
+			if (index < 0 || index >= _packetCount) {
+				throw new Exception("invalid packet index");
+			}
+
+			final long offset = (long) index * _packetSize;
+
+			if (rxd.remaining() != (int) Math.min(_packetSize, _length - offset)) {
+				throw new Exception("invalid data length");
+			}
+
+			// repairs are sent to all receivers, even if only one of them missed the packet
+			if (_received.get(index)) {
+				break;
+			}
+
+			_fout.seek(offset);
+			_fout.write(rxd.array(), rxd.position(), rxd.remaining());
+			_received.set(index);
+			_receivedCount++;
+
+			if (index == _contiguous) {
+				_contiguous = _received.nextClearBit(index);
+				this.checksumBlocks();
+			}
+
+			break;
+		}
+		case FRAME_POLL: {
+			if (rxd.remaining() != 4) {
+				throw new Exception("invalid poll frame");
+			}
+
+			final int end = rxd.getInt();
+
+			if (end < 0 || end > _packetCount) {
+				throw new Exception("invalid poll range");
+			}
+
+			if (end > _pollEnd) {
+				this.adjustWindow();
+				_pollEnd = end;
+			}
+
+			this.sendMissing(end);
+			break;
+		}
+		case FRAME_END: {
+			if (rxd.remaining() != 4) {
+				throw new Exception("invalid end frame");
+			}
+
+			// the sender repeats its FRAME_END until the verification is done
+			if (_verification != null) {
+				this.sendEnd(VERIFYING);
+				break;
+			}
+
+			if (_contiguous < _packetCount) {
+				this.sendMissing(_packetCount);
+				break;
+			}
+
+			_endCrc = rxd.getInt();
+			_verification = _checksums.combined();
+			_deadline = now + PACKET_TIMEOUT_MIN;
+
+			this.sendEnd(VERIFYING);
+			break;
+		}
+		default:
+			throw new Exception("invalid frame type");
+		}
+	}
+
+	@Override
+	boolean timeout(long now) throws Exception {
+		if (_verification != null) {
+			if (_verification.isDone()) {
+				this.verify();
+				_deadline = now + PACKET_TIMEOUT_SERVER;
+			} else {
+				_deadline = now + PACKET_TIMEOUT_MIN;
+			}
+
+			return false;
+		}
+
+		if (!_finished) {
+			throw new Exception("timeout");
+		}
+
+		return true;
+	}
+
+	@Override
+	void close(boolean failed) {
+		try {
+			_fout.close();
+		} catch (Exception e) {
+		}
+
+		if (failed) {
+			UDPDistributionSession.log("[log] deleted file '" + _file.getName() + "'");
+			_file.discard();
+		}
+	}
+
+	private void sendJoin() throws Exception {
+		final ByteBuffer payload = ByteBuffer.allocate(4 + 1);
+		payload.putInt(_receiverId);
+		payload.put(FRAME_JOIN);
+		payload.flip();
+
+		this.sendACK((byte) 0, payload);
+	}
+
+	/**
+	 * Grows the socket buffer, if the sender is limited by our receive window.
+	 *
+	 * The packets received in between two polls are what the sender
+	 * managed to get through within one round trip, i.e. the bandwidth-delay product.
+	 *
+	 * @throws IOException
+	 */
+	private void adjustWindow() throws IOException {
+		final int round = _receivedCount - _pollCount;
+		_pollCount = _receivedCount;
+
+		if (_window > 0 && round >= _window * 3 / 4) {
+			UDPServer._receiveBuffer.grow(4L * round * (_packetSize + 2 + 1 + 1 + 4));
+		}
+	}
+
+	/**
+	 * Answers a poll with the ranges of packets missing before end (as many as fit),
+	 * followed by the receive window.
+	 */
+	private void sendMissing(int end) throws Exception {
+		final int max = (UDPServer._payloadSize - 3 - 4 - 1 - 4 - 2 - 4) / 8;
+		final ByteBuffer payload = ByteBuffer.allocate(4 + 1 + 4 + 2 + max * 8 + 4);
+		int count = 0;
+
+		payload.putInt(_receiverId);
+		payload.put(FRAME_POLL);
+		payload.putInt(end);
+		payload.putShort((short) 0);
+
+		for (int first = _received.nextClearBit(_contiguous); first < end && count < max; count++) {
+			final int next = _received.nextSetBit(first);
+			final int last = next == -1 || next > end ? end : next;
+
+			payload.putInt(first);
+			payload.putInt(last - first);
+
+			first = _received.nextClearBit(last);
+		}
+
+		_window = UDPServer.receiveWindow(_packetSize);
+
+		payload.putShort(4 + 1 + 4, (short) count);
+		payload.putInt(_window);
+		payload.flip();
+
+		this.sendACK((byte) 0, payload);
+	}
+
+	/**
+	 * Answers a FRAME_END with 1 if the file has been verified, 0 if not or VERIFYING.
+	 */
+	private void sendEnd(int status) throws Exception {
+		final ByteBuffer payload = ByteBuffer.allocate(4 + 1 + 1);
+		payload.putInt(_receiverId);
+		payload.put(FRAME_END);
+		payload.put((byte) status);
+		payload.flip();
+
+		this.sendACK((byte) 0, payload);
+	}
+
+	/**
+	 * Schedules the checksums of all blocks which have been completely received.
+	 */
+	private void checksumBlocks() {
+		final long position = Math.min((long) _contiguous * _packetSize, _length);
+
+		while (_checksummed < _checksums.count() && _checksums.offset(_checksummed) + _checksums.length(_checksummed) <= position) {
+			_checksums.submit(_checksummed++);
+		}
+	}
+
+	private void verify() throws Exception {
+		final int crc;
+
+		try {
+			crc = _verification.join();
+		} catch (CompletionException e) {
+			throw new Exception("failed to verify the checksums", e.getCause());
+		}
+
+		_verification = null;
+
+		final boolean ok = crc == _endCrc;
+
+		// the file is moved into place before the sender learns that it's complete
+		if (ok) {
+			this.close(false);
+			_file.commit();
+			_finished = true;
+		}
+
+		this.sendEnd(ok ? 1 : 0);
+
+		if (!ok) {
+			throw new Exception("checksum not equal");
+		}
+
+		UDPDistributionSession.log("[log] finished file '" + _file.getName() + "'");
+	}
+}
@@ -0,0 +1,477 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.zip.CRC32;
+
+/**
+ * Distributes a single file to many servers at once.
+ *
+ * The file is read once and every packet is sent to all destinations, which
+ * is either a single multicast group or a list of unicast addresses.
+ * Instead of acknowledging each packet, the receivers are polled after each
+ * window of packets and answer with the ranges they're missing (NACKs).
+ * The union of those ranges is then sent once to all destinations, which keeps
+ * the work of the sender mostly independent of the amount of receivers.
+ *
+ * The announcement header fields:
+ *   short h_sessionId;
+ *   byte h_packetId;
+ *   byte[5] "Multi";
+ *   long h_length;
+ *   short h_filenameLength;
+ *   byte[] h_filename;
+ *   int h_packetSize;
+ *   int h_crc32;
+ *
+ * All following packets use a packet id of 0 and consist of a single frame:
+ *   FRAME_DATA: int index, followed by up to h_packetSize bytes of data
+ *   FRAME_POLL: int end, the index after the last packet sent so far
+ *   FRAME_END:  int crc32c of the whole file
+ *
+ * Receivers answer with an ACK whose payload starts with their receiver id:
+ *   FRAME_JOIN: the announcement has been accepted
+ *   FRAME_POLL: int end, short count, followed by count ranges of int first and int count,
+ *               followed by int window, the amount of packets it can take before the next poll
+ *   FRAME_END:  byte status, 1 if the file has been verified, 0 if not or VERIFYING
+ */
+class UDPDistributor extends UDPBase {
+	/*
+	 * The amount of packets sent between two polls.
+	 * Similar to TCP's congestion window it grows by WINDOW_SIZE_MIN for each
+	 * window which got through without any losses and is halved otherwise,
+	 * since overflowing the receive buffer of a single receiver slows down all of them.
+	 * It never exceeds the smallest receive window advertised by the receivers.
+	 */
+	private static final int WINDOW_SIZE_MIN = 8;
+
+	// the send buffer grows with the window, since all of its packets are sent in a single burst
+	private static final long SEND_BUFFER_BUDGET = 16 * 1024 * 1024;
+
+	// multicast receivers are unknown in advance, so we keep announcing until none joined this many times
+	private static final int ANNOUNCE_COUNT = 3;
+	private static final int ANNOUNCE_INTERVAL = 250;
+
+	/**
+	 * Identifies a receiver by its address and receiver id.
+	 */
+	private static final class Receiver {
+		private final InetSocketAddress _address;
+		private final int _id;
+
+		private boolean _complete;
+		private boolean _replied;
+		private boolean _verifying;
+		private int _misses;
+
+		Receiver(InetSocketAddress address, int id) {
+			_address = address;
+			_id = id;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Receiver)) {
+				return false;
+			}
+
+			final Receiver other = (Receiver) o;
+			return _id == other._id && _address.equals(other._address);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * _address.hashCode() + _id;
+		}
+	}
+
+	private static List<InetSocketAddress> _destinations;
+	private static final LinkedHashMap<Receiver, Receiver> _receivers = new LinkedHashMap<>();
+	private static final RetransmissionTimer _rtx = new RetransmissionTimer();
+	private static final DatagramPacket _txp = new DatagramPacket(new byte[0], 0);
+
+	private static FileChannel _channel;
+	private static long _length;
+	private static int _packetSize;
+	private static int _packetCount;
+	private static ByteBuffer _txd;
+	private static SocketBuffer _sendBuffer;
+	private static int _receiveWindow;
+	private static long _sentPackets;
+	private static long _repairedPackets;
+	private static int _failed;
+
+	private static void sendAll(ByteBuffer txd) throws IOException {
+		_txp.setData(txd.array(), 0, txd.limit());
+
+		for (InetSocketAddress destination : _destinations) {
+			_txp.setSocketAddress(destination);
+			_socket.send(_txp);
+		}
+	}
+
+	private static void beginFrame(ByteBuffer txd, byte type) {
+		txd.clear();
+		txd.putShort(_sessionId);
+		txd.put((byte) 0);
+		txd.put(type);
+	}
+
+	private static void sendPacket(int index) throws IOException {
+		final long offset = (long) index * _packetSize;
+		final int length = (int) Math.min(_packetSize, _length - offset);
+
+		UDPDistributor.beginFrame(_txd, FRAME_DATA);
+		_txd.putInt(index);
+
+		final int start = _txd.position();
+		_txd.limit(start + length);
+
+		while (_txd.hasRemaining()) {
+			if (_channel.read(_txd, offset + _txd.position() - start) == -1) {
+				throw new IOException("file truncated");
+			}
+		}
+
+		UDPDistributor.sendAll(_txd);
+		_sentPackets++;
+	}
+
+	/**
+	 * Receives the reply of a receiver until the deadline.
+	 *
+	 * @return The receiver, with _rxd positioned after the receiver id, or null on timeout.
+	 *         The receiver isn't necessarily part of _receivers.
+	 * @throws IOException
+	 */
+	private static Receiver receiveReply(long deadline) throws IOException {
+		while (true) {
+			final long now = System.nanoTime() / 1000000;
+
+			if (now >= deadline) {
+				return null;
+			}
+
+			_socket.setSoTimeout((int) Math.max(1, deadline - now));
+			_rxd.clear();
+
+			try {
+				_socket.receive(_rxp);
+			} catch (SocketTimeoutException e) {
+				return null;
+			}
+
+			_rxd.limit(_rxp.getLength());
+
+			// 2 Byte session id, 1 Byte packet id, 4 Byte receiver id, 1 Byte frame type
+			if (_rxd.limit() < 2 + 1 + 4 + 1 || _rxd.getShort() != _sessionId || _rxd.get() != 0) {
+				continue;
+			}
+
+			return new Receiver((InetSocketAddress) _rxp.getSocketAddress(), _rxd.getInt());
+		}
+	}
+
+	/**
+	 * Announces the file to all destinations and collects the receivers which accepted it.
+	 *
+	 * Unicast destinations are announced to until all of them answered, multicast
+	 * groups until no receiver joined for ANNOUNCE_COUNT times ANNOUNCE_INTERVAL.
+	 */
+	private static void announce(byte[] filenameData, boolean multicast) throws IOException {
+		// Java's CRC32 uses the IEEE 0x04C11DB7 polynomial
+		final CRC32 cc = new CRC32();
+		final ByteBuffer txd = ByteBuffer.allocate(2 + 1 + 5 + 8 + 2 + filenameData.length + 4 + 4);
+		txd.putShort(_sessionId);
+		txd.put((byte) 0);
+		txd.put(new byte[] { 'M', 'u', 'l', 't', 'i' });
+		txd.putLong(_length);
+		txd.putShort((short) filenameData.length);
+		txd.put(filenameData);
+		txd.putInt(_packetSize);
+
+		cc.update(txd.array(), 0, txd.position());
+
+		txd.putInt((int) cc.getValue());
+		txd.flip();
+
+		for (int i = 0, quiet = 0; i < PACKET_RETRY_MAX && (multicast ? quiet < ANNOUNCE_COUNT || _receivers.isEmpty() : _receivers.size() < _destinations.size()); i++) {
+			final long time1 = System.nanoTime();
+			final int interval = multicast ? ANNOUNCE_INTERVAL : _rtx.rto();
+			final int joined = _receivers.size();
+
+			UDPDistributor.sendAll(txd);
+
+			Receiver receiver;
+
+			while ((receiver = UDPDistributor.receiveReply(time1 / 1000000 + interval)) != null) {
+				if (_rxd.get() != FRAME_JOIN || _receivers.containsKey(receiver)) {
+					continue;
+				}
+
+				if (_receivers.isEmpty()) {
+					_rtx.updateWithRtt((int) ((System.nanoTime() - time1) / 1000000));
+				}
+
+				_receivers.put(receiver, receiver);
+				UDPDistributor.log("[log] receiver joined: " + receiver._address.getAddress().getHostAddress() + ":" + receiver._address.getPort());
+
+				if (!multicast && _receivers.size() == _destinations.size()) {
+					break;
+				}
+			}
+
+			quiet = _receivers.size() == joined ? quiet + 1 : 0;
+		}
+
+		// unicast destinations are known, so those which never joined count as failed
+		if (!multicast) {
+			for (InetSocketAddress destination : _destinations) {
+				boolean joined = false;
+
+				for (Receiver receiver : _receivers.keySet()) {
+					joined |= receiver._address.equals(destination);
+				}
+
+				if (!joined) {
+					UDPDistributor.error("[error] receiver not responding: " + destination);
+					_failed++;
+				}
+			}
+		}
+
+		if (_receivers.isEmpty()) {
+			throw new IOException("no receivers");
+		}
+	}
+
+	/**
+	 * Polls all receivers until each of them received all packets before end.
+	 *
+	 * If last is true the poll is a FRAME_END, which the receivers
+	 * answer once they have received and verified the whole file.
+	 * Receivers which stop answering are dropped.
+	 *
+	 * @return true if no packets had to be repaired.
+	 */
+	private static boolean confirm(int end, boolean last, int crc) throws IOException {
+		final ByteBuffer ctl = ByteBuffer.allocate(2 + 1 + 1 + 4);
+		final BitSet repairs = new BitSet();
+		boolean lossless = true;
+		int receiveWindow = Integer.MAX_VALUE;
+
+		for (Receiver receiver : _receivers.values()) {
+			receiver._complete = false;
+			receiver._misses = 0;
+		}
+
+		for (int round = 0;; round++) {
+			int waiting = 0;
+
+			for (Receiver receiver : _receivers.values()) {
+				receiver._replied = false;
+				receiver._verifying = false;
+
+				if (!receiver._complete) {
+					waiting++;
+				}
+			}
+
+			if (waiting == 0) {
+				if (receiveWindow != Integer.MAX_VALUE) {
+					_receiveWindow = receiveWindow;
+				}
+
+				return lossless;
+			}
+
+			UDPDistributor.beginFrame(ctl, last ? FRAME_END : FRAME_POLL);
+			ctl.putInt(last ? crc : end);
+			ctl.flip();
+
+			final long time1 = System.nanoTime();
+
+			UDPDistributor.sendAll(ctl);
+
+			repairs.clear();
+
+			Receiver reply;
+
+			while (waiting > 0 && (reply = UDPDistributor.receiveReply(time1 / 1000000 + _rtx.rto())) != null) {
+				final Receiver receiver = _receivers.get(reply);
+
+				if (receiver == null || receiver._complete || receiver._replied) {
+					continue;
+				}
+
+				final byte type = _rxd.get();
+
+				if (type == FRAME_POLL) {
+					// a late answer to a previous poll or an invalid one
+					if (_rxd.remaining() < 4 + 2 || _rxd.getInt() != (last ? _packetCount : end)) {
+						continue;
+					}
+
+					final int count = _rxd.getShort();
+
+					if (count < 0 || _rxd.remaining() != count * 8 + 4) {
+						continue;
+					}
+
+					for (int i = 0; i < count; i++) {
+						final int first = _rxd.getInt();
+						final int n = _rxd.getInt();
+
+						if (first >= 0 && n > 0 && n <= _packetCount - first) {
+							repairs.set(first, first + n);
+						}
+					}
+
+					receiveWindow = Math.min(receiveWindow, Math.max(_rxd.getInt(), 1));
+					receiver._complete = count == 0 && !last;
+				} else if (type == FRAME_END && last && _rxd.remaining() == 1) {
+					final byte status = _rxd.get();
+
+					// the result is sent on its own once it's known, so the receiver isn't done replying yet
+					if (status == VERIFYING) {
+						receiver._verifying = true;
+						receiver._misses = 0;
+						continue;
+					}
+
+					receiver._complete = true;
+
+					if (status == 0) {
+						UDPDistributor.error("[error] checksum not equal at " + receiver._address);
+						_failed++;
+					}
+				} else {
+					continue;
+				}
+
+				if (round == 0 && waiting == _receivers.size()) {
+					_rtx.updateWithRtt((int) ((System.nanoTime() - time1) / 1000000));
+				}
+
+				receiver._replied = true;
+				receiver._misses = 0;
+				waiting--;
+			}
+
+			if (waiting > 0) {
+				final Iterator<Receiver> it = _receivers.values().iterator();
+
+				while (it.hasNext()) {
+					final Receiver receiver = it.next();
+
+					if (!receiver._complete && !receiver._replied && !receiver._verifying && ++receiver._misses >= PACKET_RETRY_MAX) {
+						UDPDistributor.error("[error] receiver not responding: " + receiver._address);
+						it.remove();
+						_failed++;
+					}
+				}
+
+				_rtx.updateWithTimeout(Math.min(round + 1, 3));
+			}
+
+			for (int index = repairs.nextSetBit(0); index != -1; index = repairs.nextSetBit(index + 1)) {
+				UDPDistributor.sendPacket(index);
+				_repairedPackets++;
+				lossless = false;
+			}
+		}
+	}
+
+	/**
+	 * Distributes a file to all destinations.
+	 *
+	 * @param multicast true if the only destination is a multicast group.
+	 * @return The amount of receivers which failed to receive the file.
+	 * @throws IOException
+	 */
+	static int distribute(List<InetSocketAddress> destinations, boolean multicast, File file, int payloadSize) throws IOException {
+		final byte[] filenameData = file.getName().getBytes("UTF-8");
+
+		if (filenameData.length == 0 || filenameData.length > 255) {
+			throw new IOException("invalid Basename size: '" + file.getName() + "'");
+		}
+
+		_destinations = new ArrayList<>(destinations);
+		_length = file.length();
+		_packetSize = payloadSize - (2 + 1 + 1 + 4);
+		_packetCount = (int) Math.min((_length + _packetSize - 1) / _packetSize, Integer.MAX_VALUE);
+		_txd = ByteBuffer.allocate(payloadSize);
+
+		if ((long) _packetCount * _packetSize < _length) {
+			throw new IOException("file too large");
+		}
+
+		try (final FileInputStream fin = new FileInputStream(file)) {
+			_channel = fin.getChannel();
+
+			// the checksums are computed by the worker threads while the file is being sent
+			final BlockChecksums checksums = new BlockChecksums(_channel, _length);
+
+			for (int block = 0; block < checksums.count(); block++) {
+				checksums.submit(block);
+			}
+
+			UDPDistributor.announce(filenameData, multicast);
+
+			final long beginTime = System.nanoTime();
+
+			int windowSize = DISTRIBUTION_WINDOW_INITIAL;
+
+			_receiveWindow = DISTRIBUTION_WINDOW_INITIAL;
+			_sendBuffer = new SocketBuffer(_socket, StandardSocketOptions.SO_SNDBUF, DISTRIBUTION_WINDOW_INITIAL * _destinations.size() * payloadSize, SEND_BUFFER_BUDGET);
+
+			for (int start = 0; start < _packetCount;) {
+				final int end = Math.min(start + windowSize, _packetCount);
+
+				// unicast destinations each get a copy of every packet
+				_sendBuffer.grow((long) (end - start) * _destinations.size() * payloadSize);
+
+				for (int index = start; index < end; index++) {
+					UDPDistributor.sendPacket(index);
+				}
+
+				if (UDPDistributor.confirm(end, false, 0)) {
+					windowSize = Math.min(windowSize + WINDOW_SIZE_MIN, DISTRIBUTION_WINDOW_MAX);
+				} else {
+					windowSize = Math.max(windowSize / 2, WINDOW_SIZE_MIN);
+				}
+
+				windowSize = Math.min(windowSize, _receiveWindow);
+
+				start = end;
+			}
+
+			final int crc;
+
+			try {
+				crc = checksums.combined().join();
+			} catch (CompletionException e) {
+				throw new IOException("failed to checksum the file", e.getCause());
+			}
+
+			UDPDistributor.confirm(_packetCount, true, crc);
+
+			final double seconds = (System.nanoTime() - beginTime) / 1e9;
+
+			UDPDistributor.log(String.format("[log] sent %,d packets (%,d repairs) to %d receivers in %.2fs", _sentPackets, _repairedPackets, _receivers.size() + _failed, seconds));
+		}
+
+		return _failed;
+	}
+}
@@ -0,0 +1,202 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * A transfer of a file from the server to a client.
+ *
+ * The roles of the original protocol are reversed: the server sends
+ * the frames of the extended protocol and the client acknowledges them.
+ * The file is served from the shared MappedFileCache.
+ */
+class UDPDownloadSession extends UDPSession {
+	// the amount of zeros read at most for a single FRAME_HOLE, so that long holes don't stall the event loop
+	private static final long HOLE_SCAN_MAX = 1024 * 1024;
+
+	private final File _file;
+	private final int _flags;
+	private final MappedFileCache.Entry _entry;
+	private final long _length;
+
+	// Java's CRC32 uses the IEEE 0x04C11DB7 polynomial
+	private final CRC32 _cc = new CRC32();
+	private final RetransmissionTimer _rtx = new RetransmissionTimer();
+	private final byte[] _txd = new byte[UDPServer._payloadSize];
+	private int _txdLength;
+	private long _position;
+	private long _sentTime;
+	private int _retries;
+	private boolean _started;
+	private boolean _ended;
+	private boolean _released;
+
+	/**
+	 * Sends the ACK for the handshake, which contains the length of the file,
+	 * or -1 if it doesn't exist, followed by the first frame.
+	 *
+	 * @throws Exception
+	 */
+	UDPDownloadSession(InetSocketAddress address, short id, File file, int flags, int transfer, long now) throws Exception {
+		super(address, id);
+
+		_transfer = transfer;
+
+		_file = file;
+		_flags = flags;
+		_entry = file.isFile() ? UDPServer._fileCache.acquire(file) : null;
+		_length = _entry != null ? _entry.length() : -1;
+
+		final ByteBuffer payload = ByteBuffer.allocate(4 + 2 + 8);
+		payload.putInt(flags);
+
+		if ((flags & FLAG_TRANSFER) != 0) {
+			payload.putShort((short) transfer);
+		}
+
+		payload.putLong(_length);
+		payload.flip();
+
+		this.sendACK(_packetId, payload);
+
+		if (_entry == null) {
+			UDPDownloadSession.error("[error] handshake: file not found '" + file.getName() + "'");
+
+			// stick around to answer repeated handshakes
+			_finished = true;
+			_deadline = now + PACKET_TIMEOUT_SERVER;
+			return;
+		}
+
+		UDPDownloadSession.log("[log] sending file '" + file.getName() + "'");
+
+		this.sendNext(now);
+	}
+
+	@Override
+	void receive(ByteBuffer rxd, byte packetId, long now) throws Exception {
+		// ACKs of the client never contain any data, so this must be a repeated handshake
+		if (rxd.hasRemaining()) {
+			if (packetId == 0 && !_started) {
+				this.resendACK();
+			}
+
+			return;
+		}
+
+		if (_finished || packetId != _packetId) {
+			return;
+		}
+
+		_started = true;
+
+		if (_retries == 0) {
+			_rtx.updateWithRtt((int) (now - _sentTime));
+		}
+
+		if (_ended) {
+			this.close(false);
+			UDPDownloadSession.log("[log] sent file '" + _file.getName() + "'");
+
+			_finished = true;
+			_deadline = now;
+			return;
+		}
+
+		this.sendNext(now);
+	}
+
+	@Override
+	boolean timeout(long now) throws Exception {
+		if (_finished) {
+			return true;
+		}
+
+		if (++_retries >= PACKET_RETRY_MAX) {
+			throw new Exception("timeout");
+		}
+
+		_rtx.updateWithTimeout(_retries);
+		this.transmit(now);
+
+		return false;
+	}
+
+	@Override
+	void close(boolean failed) {
+		if (_entry != null && !_released) {
+			UDPServer._fileCache.release(_entry);
+			_released = true;
+		}
+	}
+
+	private void transmit(long now) throws IOException {
+		UDPServer.send(_txd, _txdLength, _address);
+
+		_sentTime = now;
+		_deadline = now + _rtx.rto();
+	}
+
+	/**
+	 * Builds the next frame and sends it.
+	 *
+	 * If FLAG_SPARSE was accepted, runs of packets only containing
+	 * zeros are sent as a single FRAME_HOLE, just like the client does.
+	 * Longer holes than HOLE_SCAN_MAX are split up into several frames.
+	 *
+	 * @throws IOException
+	 */
+	private void sendNext(long now) throws IOException {
+		final ByteBuffer txd = ByteBuffer.wrap(_txd);
+		final int headerSize = 2 + 1 + 1;
+		final int dataMax = _txd.length - headerSize;
+
+		_packetId = (byte) ((_packetId + 1) % PACKET_ID_COUNT);
+		_retries = 0;
+
+		txd.putShort(_id);
+		txd.put(_packetId);
+
+		if (_position == _length) {
+			txd.put(FRAME_END);
+			txd.putInt((int) _cc.getValue());
+			_ended = true;
+		} else {
+			long hole = 0;
+
+			while (_position + hole < _length && hole < HOLE_SCAN_MAX) {
+				final int n = (int) Math.min(dataMax, _length - _position - hole);
+				_entry.read(_position + hole, _txd, headerSize, n);
+
+				if ((_flags & FLAG_SPARSE) != 0 && UDPDownloadSession.isZero(_txd, headerSize, n)) {
+					hole += n;
+					continue;
+				}
+
+				// the data following a hole is sent with the next frame
+				if (hole > 0) {
+					break;
+				}
+
+				_cc.update(_txd, headerSize, n);
+				_position += n;
+
+				txd.put(FRAME_DATA);
+				txd.position(headerSize + n);
+				break;
+			}
+
+			if (hole > 0) {
+				UDPDownloadSession.updateWithZeros(_cc, hole);
+				_position += hole;
+
+				txd.put(FRAME_HOLE);
+				txd.putLong(hole);
+			}
+		}
+
+		_txdLength = txd.position();
+		this.transmit(now);
+	}
+}
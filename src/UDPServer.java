@@ -1,20 +1,91 @@
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.Inet6Address;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.SocketTimeoutException;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.CRC32;
 
 class UDPServer extends UDPBase {
+	private static final int SUPPORTED_FLAGS = FLAG_SPARSE | FLAG_DELTA | FLAG_CHUNKS | FLAG_CRC32C | FLAG_EARLY_DATA | FLAG_BACKOFF | FLAG_TRANSFER;
+	private static final int SUPPORTED_DOWNLOAD_FLAGS = FLAG_SPARSE | FLAG_BACKOFF | FLAG_TRANSFER;
+
+	private static final long CHUNK_CACHE_BUDGET = 64 * 1024 * 1024;
+	private static final long CHUNK_STORE_BUDGET = 1024L * 1024 * 1024;
+	private static final long FILE_CACHE_BUDGET = 256 * 1024 * 1024;
+	private static final long QUEUE_BUDGET = 4 * 1024 * 1024;
+	private static final long RECEIVE_BUFFER_BUDGET = 16 * 1024 * 1024;
+	private static final int DROP_CHECK_INTERVAL = 1000;
+
+	// incomplete files are kept out of the working directory, where they could be downloaded
+	private static final String SPOOL_DIR = ".spool";
+	private static final int SESSIONS_MAX = 64;
+
+	// the time a busy server asks clients to wait before repeating their handshake
+	private static final int BUSY_RETRY_AFTER = 500;
+
+	private static final byte[] START = { 'S', 't', 'a', 'r', 't' };
+	private static final byte[] FETCH = { 'F', 'e', 't', 'c', 'h' };
+	private static final byte[] MULTI = { 'M', 'u', 'l', 't', 'i' };
+
 	private static double _packetLoss;
 	private static double _packetDelay;
 	private static double _packetDelayVariation;
 
+	private static DatagramChannel _channel;
+	private static Selector _selector;
+	private static FairQueue _queue;
+	private static int _sessionsMax = SESSIONS_MAX;
+
+	static ChunkStore _chunkStore;
+	static SocketBuffer _receiveBuffer;
+	static NameIndex _names;
+	static File _spoolDir;
+	static MappedFileCache _fileCache;
+	static int _payloadSize;
+	static int _signaturesPerAck;
+
+	/**
+	 * Identifies a session by the address of the client and its session id.
+	 */
+	private static final class SessionKey {
+		private final InetSocketAddress _address;
+		private final short _id;
+
+		SessionKey(InetSocketAddress address, short id) {
+			_address = address;
+			_id = id;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof SessionKey)) {
+				return false;
+			}
+
+			final SessionKey other = (SessionKey) o;
+			return _id == other._id && _address.equals(other._address);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * _address.hashCode() + _id;
+		}
+	}
+
 	/**
 	 * Used in a testing environment to simulate packet delay and loss.
 	 *
@@ -29,7 +100,7 @@ class UDPServer extends UDPBase {
 	 *
 	 * @return true if the packet should be dropped, otherwise false.
 	 */
-	private static boolean simulateDelayAndLoss() {
+	static boolean simulateDelayAndLoss() {
 		double delay = _packetDelay;
 
 		if (_packetDelayVariation > 0) {
@@ -47,64 +118,135 @@ class UDPServer extends UDPBase {
 	}
 
 	/**
-	 * Tries to receive a single packet.
-	 *
-	 * This function will try to receive a packet.
+	 * Tries to receive a single packet without blocking.
 	 *
+	 * @return The address of the sender or null if no packet is available.
 	 * @throws IOException
 	 */
-	private static void receive() throws IOException {
+	private static InetSocketAddress receive() throws IOException {
+		InetSocketAddress address;
+
 		do {
 			_rxd.clear();
-			_socket.receive(_rxp);
-			_rxd.limit(_rxp.getLength());
-		} while (UDPServer.simulateDelayAndLoss());
+			address = (InetSocketAddress) _channel.receive(_rxd);
+			_rxd.flip();
+		} while (address != null && UDPServer.simulateDelayAndLoss());
+
+		return address;
 	}
 
 	/**
-	 * Sends a single ACK to the current client.
+	 * Sends a single packet to a client.
+	 *
+	 * The channel is non-blocking, so a packet which doesn't fit
+	 * into the send buffer anymore is lost, just like on the network.
 	 *
-	 * @param packetId The packet which should be acknowledged.
 	 * @throws IOException
 	 */
-	private static void sendACK(byte packetId) throws IOException {
+	static void send(byte[] data, int length, InetSocketAddress address) throws IOException {
 		if (!UDPServer.simulateDelayAndLoss()) {
-			ByteBuffer txd = ByteBuffer.allocate(3);
-			txd.putShort(_sessionId);
-			txd.put(packetId);
-
-			DatagramPacket packet = new DatagramPacket(txd.array(), txd.capacity(), _targetAddress);
-			_socket.send(packet);
+			_channel.send(ByteBuffer.wrap(data, 0, length), address);
 		}
 	}
 
-	private static File createFileForFilenameWish(byte[] f) throws Exception {
-		String filename = new String(f, "UTF-8");
-		File file = new File(filename);
+	/**
+	 * Tells a client to repeat its handshake after BUSY_RETRY_AFTER ms.
+	 *
+	 * @throws IOException
+	 */
+	private static void sendBusy(InetSocketAddress address, short sessionId) throws IOException {
+		final ByteBuffer busy = ByteBuffer.allocate(2 + 1 + 1 + 4);
+		busy.putShort(sessionId);
+		busy.put((byte) 0);
+		busy.put(FRAME_BUSY);
+		busy.putInt(BUSY_RETRY_AFTER);
+
+		UDPServer.send(busy.array(), busy.position(), address);
+	}
 
-		if (file.exists()) {
-			int idx = filename.lastIndexOf('.');
-			String name = filename.substring(0, idx);
-			String ext = filename.substring(idx);
+	/**
+	 * Checks whether another session can be started.
+	 *
+	 * Lingering sessions of completed transfers don't count, since they don't
+	 * receive any data anymore. A queue filled beyond half of its budget means
+	 * that the server already falls behind the sessions it has.
+	 */
+	private static boolean admit(HashMap<SessionKey, UDPSession> sessions) {
+		int active = 0;
 
-			for (int i = 1; i < Integer.MAX_VALUE; i++) {
-				file = new File(name + String.valueOf(i) + ext);
+		for (UDPSession session : sessions.values()) {
+			if (!session.finished()) {
+				active++;
+			}
+		}
 
-				if (!file.exists()) {
-					break;
-				}
+		return active < _sessionsMax && _queue.bytes() <= _queue.budget() / 2;
+	}
+
+	/**
+	 * The amount of packets of the given size a client may send without waiting for us.
+	 *
+	 * Packets are first buffered by the socket and then by the per-client queues,
+	 * which is why the window is limited by both of them.
+	 */
+	static int receiveWindow(int packetSize) {
+		final long bytes = Math.min(_receiveBuffer.usable(), _queue.budget() / 2);
+		return (int) Math.max(1, Math.min(bytes / (packetSize + 2 + 1 + 1 + 4), DISTRIBUTION_WINDOW_MAX));
+	}
+
+	/**
+	 * Finds the interface to join a multicast group on, if none was given.
+	 */
+	private static NetworkInterface defaultMulticastInterface() throws IOException {
+		NetworkInterface loopback = null;
+
+		for (NetworkInterface inet : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+			if (!inet.isUp() || !inet.supportsMulticast()) {
+				continue;
 			}
 
-			if (file.exists()) {
-				throw new Exception("could not find non existing filename");
+			if (!inet.isLoopback()) {
+				return inet;
 			}
+
+			loopback = inet;
+		}
+
+		if (loopback == null) {
+			throw new IOException("no multicast capable interface");
+		}
+
+		return loopback;
+	}
+
+	/**
+	 * Validates a filename requested by a client.
+	 */
+	private static String parseFilename(byte[] f) throws Exception {
+		final String filename = new String(f, "UTF-8");
+
+		// only files in the working directory may be created or downloaded
+		if (filename.equals(".") || filename.equals("..") || filename.indexOf('/') != -1 || filename.indexOf(File.separatorChar) != -1) {
+			throw new Exception("invalid filename");
 		}
 
-		return file;
+		return filename;
+	}
+
+	/**
+	 * Chooses the block size for delta transfers against a file.
+	 *
+	 * Like rsync this uses roughly the square root of the file size,
+	 * which balances the amount of signatures against the amount
+	 * of literal data a single changed byte causes.
+	 */
+	private static int deltaBlockSize(long length) {
+		long blockSize = ((long) Math.sqrt(length) + 1023) & ~1023L;
+		return (int) Math.max(DELTA_BLOCK_SIZE_MIN, Math.min(blockSize, DELTA_BLOCK_SIZE_MAX));
 	}
 
 	private static void printHelp() {
-		System.out.println("Usage: server-udp <port> [<loss> <delay> [<variation>]]");
+		System.out.println("Usage: server-udp [<options>] <port> [<loss> <delay> [<variation>]]");
 		System.out.println("  <port>       The port number the server should listen on.");
 		System.out.println("               This number must be between 0 and 65535");
 		System.out.println("               A value of 0 tells the application to choose a random port.");
@@ -118,9 +260,400 @@ class UDPServer extends UDPBase {
 		System.out.println("               as a value between 0 and 1, or 0% and 100% (inclusive, the default).");
 		System.out.println("               A variation of 10ms and a delay of 100ms will create a random delay of 100±10ms.");
 		System.out.println("               The default is 10%.");
+		System.out.println();
+		System.out.println("Options:");
+		System.out.println("  --chunk-store <dir>  Store all received files as content-defined chunks in <dir>,");
+		System.out.println("                       allowing clients to skip chunks the server already has.");
+		System.out.println("                       Each new chunk is written twice, into the file and into the store.");
+		System.out.println("  --chunk-store-size <MiB>");
+		System.out.println("                       The size the chunk store grows to at most. The default is 1024.");
+		System.out.println("  --spool <dir>        Receive files into <dir> and move them into the working directory once complete.");
+		System.out.println("                       It must be on the same file system. The default is .spool.");
+		System.out.println("  --cache-size <MiB>   The amount of memory-mapped files kept around for downloads.");
+		System.out.println("                       The default is 256.");
+		System.out.println("  --buffer-memory <MiB>");
+		System.out.println("                       The maximum size the socket receive buffer grows to. The default is 16.");
+		System.out.println("  --max-sessions <n>   The maximum amount of concurrent transfers. The default is 64.");
+		System.out.println("  --queue-size <MiB>   The amount of memory for received packets waiting to be processed.");
+		System.out.println("                       Packets are processed fairly per client. The default is 4.");
+		System.out.println("  --join <group>       Join a multicast group to receive files distributed with client-udp --distribute.");
+		System.out.println("  --interface <name>   The network interface to join the multicast group on, e.g. lo.");
+	}
+
+
+	/**
+	 * Reads the transfer number of the packet in _rxd, positioned after the packet id,
+	 * if it's the handshake of an upload or download.
+	 *
+	 * @return The transfer number, -1 if the handshake has none or -2 if the packet isn't a valid handshake.
+	 */
+	private static int handshakeTransfer() {
+		final int pos = _rxd.position();
+		final int limit = _rxd.limit();
+
+		if (_rxd.get(pos - 1) != 0 || limit < 19) {
+			return -2;
+		}
+
+		final byte[] signature = Arrays.copyOfRange(_rxd.array(), pos, pos + START.length);
+		final boolean upload = Arrays.equals(signature, START);
+
+		if (!upload && !Arrays.equals(signature, FETCH)) {
+			return -2;
+		}
+
+		final int filenameOffset = pos + START.length + (upload ? 8 : 0);
+		final int flagsOffset = filenameOffset + 2 + _rxd.getShort(filenameOffset);
+
+		if (flagsOffset <= filenameOffset + 2 || flagsOffset + 4 + 2 + 4 > limit || (_rxd.getInt(flagsOffset) & FLAG_TRANSFER) == 0) {
+			return -1;
+		}
+
+		// data packets might look like a handshake by chance, but never end with its CRC32
+		final CRC32 cc = new CRC32();
+		cc.update(_rxd.array(), 0, limit - 4);
+
+		if (_rxd.getInt(limit - 4) != (int) cc.getValue()) {
+			return -2;
+		}
+
+		return _rxd.getShort(flagsOffset + 4) & 0xffff;
+	}
+
+	/**
+	 * Parses the handshake of a new session.
+	 *
+	 * The handshake header fields of an upload:
+	 *   short h_sessionId;
+	 *   byte h_packetId;
+	 *   byte[5] "Start";
+	 *   long h_length;
+	 *   short h_filenameLength;
+	 *   byte[] h_filename;
+	 *   int h_flags; (optional, extended protocol only)
+	 *   short h_transfer; (optional, with FLAG_TRANSFER only)
+	 *   byte[] h_data; (optional, with FLAG_EARLY_DATA only)
+	 *   int h_crc32;
+	 *
+	 * The handshake header fields of a download:
+	 *   short h_sessionId;
+	 *   byte h_packetId;
+	 *   byte[5] "Fetch";
+	 *   short h_filenameLength;
+	 *   byte[] h_filename;
+	 *   int h_flags;
+	 *   short h_transfer; (optional, with FLAG_TRANSFER only)
+	 *   int h_crc32;
+	 *
+	 * The handshake header fields of a distribution (see UDPDistributor):
+	 *   short h_sessionId;
+	 *   byte h_packetId;
+	 *   byte[5] "Multi";
+	 *   long h_length;
+	 *   short h_filenameLength;
+	 *   byte[] h_filename;
+	 *   int h_packetSize;
+	 *   int h_crc32;
+	 *
+	 * Clients setting FLAG_BACKOFF are told to retry later if the server is busy,
+	 * instead of their handshake being dropped.
+	 *
+	 * @param admitted false if the server is busy and no session may be started.
+	 * @return The new session, which already sent its ACK for the handshake.
+	 * @throws Exception if the packet isn't a valid handshake.
+	 */
+	private static UDPSession accept(InetSocketAddress address, boolean admitted, long now) throws Exception {
+		// Java's CRC32 uses the IEEE 0x04C11DB7 polynomial
+		final CRC32 cc = new CRC32();
+
+		File basisFile = null;
+		int blockSize = 0;
+		int blockCount = 0;
+		short h_sessionId;
+		byte h_packetId;
+		byte[] h_signature;
+		long h_length = 0;
+		short h_filenameLength;
+		byte[] h_filename;
+		boolean h_extended;
+		int h_flags;
+		int h_transfer = -1;
+		int h_packetSize = 0;
+		ByteBuffer h_data = null;
+		int h_crc32;
+
+		/*
+		 * The download handshake packet is in every possible case at least 19 Bytes
+		 * large, the upload handshake at least 23 Bytes. (This includes +1 for the
+		 * assertion, that the filename is at least 1 Byte long.)
+		 */
+		if (_rxd.limit() < 19) {
+			throw new Exception("too small");
+		}
+
+		h_sessionId = _rxd.getShort();
+		h_packetId = _rxd.get();
+
+		// as per specification the handshake must have a packet ID of 0
+		if (h_packetId != 0) {
+			throw new Exception("invalid packet id");
+		}
+
+		h_signature = new byte[START.length];
+		_rxd.get(h_signature);
+
+		final boolean upload = Arrays.equals(h_signature, START);
+		final boolean multi = Arrays.equals(h_signature, MULTI);
+
+		if (!upload && !multi && !Arrays.equals(h_signature, FETCH)) {
+			throw new Exception("invalid \"Start\", \"Fetch\" or \"Multi\" signature");
+		}
+
+		if (upload || multi) {
+			if (_rxd.limit() < 23) {
+				throw new Exception("too small");
+			}
+
+			h_length = _rxd.getLong();
+
+			if (h_length <= 0) {
+				throw new Exception("invalid (zero) or too large (greater than Long.MAX_VALUE) length field");
+			}
+		}
+
+		h_filenameLength = _rxd.getShort();
+
+		/*
+		 * Check remaining() if the filename is actually fully present,
+		 * including 4 additional Bytes for the CRC32.
+		 */
+		if (h_filenameLength <= 0 || _rxd.remaining() - 4 < h_filenameLength) {
+			throw new Exception("invalid filename field");
+		}
+
+		h_filename = new byte[h_filenameLength];
+		_rxd.get(h_filename);
+
+		// anything in between the filename and the CRC32 must be the flags field
+		h_extended = _rxd.remaining() > 4;
+		h_flags = 0;
+
+		if (multi) {
+			if (_rxd.remaining() != 8) {
+				throw new Exception("invalid packet size field");
+			}
+
+			h_packetSize = _rxd.getInt();
+		} else if (h_extended) {
+			if (_rxd.remaining() < 8) {
+				throw new Exception("invalid flags field");
+			}
+
+			h_flags = _rxd.getInt();
+
+			if ((h_flags & FLAG_TRANSFER) != 0) {
+				if (_rxd.remaining() < 2 + 4) {
+					throw new Exception("invalid transfer field");
+				}
+
+				h_transfer = _rxd.getShort() & 0xffff;
+			}
+
+			// the first bytes of the file may follow the flags field
+			if (_rxd.remaining() > 4) {
+				final int dataLength = _rxd.remaining() - 4;
+
+				if (!upload || (h_flags & FLAG_EARLY_DATA) == 0 || dataLength > h_length) {
+					throw new Exception("invalid flags field");
+				}
+
+				h_data = ByteBuffer.wrap(_rxd.array(), _rxd.position(), dataLength);
+				_rxd.position(_rxd.position() + dataLength);
+			}
+		} else if (!upload) {
+			throw new Exception("missing flags field");
+		}
+
+		cc.update(_rxd.array(), 0, _rxd.position());
+
+		h_crc32 = _rxd.getInt();
+
+		/*
+		 * Casting cc.getValue() down to int is very important.
+		 * cc.getValue() will return some positive value [0, 2^32).
+		 * _rxd.getInt() will return the same value (bitwise), but in a signed representation.
+		 * Thus we can just cast the first one down to an int, to get a correct comparison.
+		 * If we don't, the compiler would promote the (int) h_crc32 to an (long),
+		 * which turns (int)-1 to (long)-1, instead of an positive value [0, 2^32).
+		 */
+		if (h_crc32 != (int) cc.getValue()) {
+			throw new Exception("invalid checksum");
+		}
+
+		if (!admitted) {
+			if ((h_flags & FLAG_BACKOFF) != 0) {
+				UDPServer.sendBusy(address, h_sessionId);
+			}
+
+			throw new Exception("server busy");
+		}
+
+		if (multi) {
+			if (h_packetSize <= 0 || h_packetSize > _rxd.capacity() - (2 + 1 + 1 + 4)) {
+				throw new Exception("invalid packet size");
+			}
+
+			return new UDPDistributionSession(address, h_sessionId, new SpoolFile(UDPServer.parseFilename(h_filename)), h_length, h_packetSize, now);
+		}
+
+		if (!upload) {
+			final String filename = UDPServer.parseFilename(h_filename);
+			return new UDPDownloadSession(address, h_sessionId, new File(filename), h_flags & SUPPORTED_DOWNLOAD_FLAGS, h_transfer, now);
+		}
+
+		h_flags &= SUPPORTED_FLAGS;
+
+		if (_chunkStore == null) {
+			h_flags &= ~FLAG_CHUNKS;
+		}
+
+		final String filename = UDPServer.parseFilename(h_filename);
+
+		// a delta can only be applied if a file with the same name already exists
+		if ((h_flags & FLAG_DELTA) != 0) {
+			basisFile = new File(filename);
+			blockSize = UDPServer.deltaBlockSize(basisFile.length());
+			blockCount = (int) Math.min(basisFile.length() / blockSize, Integer.MAX_VALUE);
+
+			if (!basisFile.isFile() || blockCount == 0) {
+				h_flags &= ~FLAG_DELTA;
+				basisFile = null;
+			}
+		}
+
+		return new UDPUploadSession(address, h_sessionId, new SpoolFile(filename), h_length, h_extended, h_flags, h_transfer, basisFile, blockSize, blockCount, h_data, now);
 	}
 
 	public static void main(String args[]) throws Exception {
+		final ArrayList<String> positional = new ArrayList<>();
+		String chunkStoreDir = null;
+		String spoolDir = null;
+		String group = null;
+		String interfaceName = null;
+		long chunkStoreSize = CHUNK_STORE_BUDGET;
+		long cacheSize = FILE_CACHE_BUDGET;
+		long queueSize = QUEUE_BUDGET;
+		long bufferMemory = RECEIVE_BUFFER_BUDGET;
+
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "--chunk-store":
+				if (++i == args.length) {
+					UDPServer.printHelp();
+					System.exit(1);
+				}
+
+				chunkStoreDir = args[i];
+				break;
+			case "--chunk-store-size":
+				try {
+					chunkStoreSize = Long.parseLong(args[++i]) * 1024 * 1024;
+
+					if (chunkStoreSize <= 0) {
+						throw new Exception();
+					}
+				} catch (Exception e) {
+					UDPServer.error("[error] invalid chunk store size");
+					UDPServer.printHelp();
+					System.exit(2);
+				}
+
+				break;
+			case "--spool":
+				if (++i == args.length) {
+					UDPServer.printHelp();
+					System.exit(1);
+				}
+
+				spoolDir = args[i];
+				break;
+			case "--cache-size":
+				try {
+					cacheSize = Long.parseLong(args[++i]) * 1024 * 1024;
+
+					if (cacheSize < 0) {
+						throw new Exception();
+					}
+				} catch (Exception e) {
+					UDPServer.error("[error] invalid cache size");
+					UDPServer.printHelp();
+					System.exit(2);
+				}
+
+				break;
+			case "--queue-size":
+				try {
+					queueSize = Long.parseLong(args[++i]) * 1024 * 1024;
+
+					if (queueSize <= 0) {
+						throw new Exception();
+					}
+				} catch (Exception e) {
+					UDPServer.error("[error] invalid queue size");
+					UDPServer.printHelp();
+					System.exit(2);
+				}
+
+				break;
+			case "--buffer-memory":
+				try {
+					bufferMemory = Long.parseLong(args[++i]) * 1024 * 1024;
+
+					if (bufferMemory <= 0 || bufferMemory > Integer.MAX_VALUE) {
+						throw new Exception();
+					}
+				} catch (Exception e) {
+					UDPServer.error("[error] invalid buffer memory");
+					UDPServer.printHelp();
+					System.exit(2);
+				}
+
+				break;
+			case "--max-sessions":
+				try {
+					_sessionsMax = Integer.parseInt(args[++i]);
+
+					if (_sessionsMax <= 0) {
+						throw new Exception();
+					}
+				} catch (Exception e) {
+					UDPServer.error("[error] invalid maximum amount of sessions");
+					UDPServer.printHelp();
+					System.exit(2);
+				}
+
+				break;
+			case "--join":
+			case "--interface":
+				if (i + 1 == args.length) {
+					UDPServer.printHelp();
+					System.exit(1);
+				}
+
+				if (args[i].equals("--join")) {
+					group = args[++i];
+				} else {
+					interfaceName = args[++i];
+				}
+
+				break;
+			default:
+				positional.add(args[i]);
+			}
+		}
+
+		args = positional.toArray(new String[positional.size()]);
+
 		switch (args.length) {
 		case 1:
 		case 3:
@@ -216,235 +749,233 @@ class UDPServer extends UDPBase {
 		}
 
 		try {
-			_socket = new DatagramSocket(port);
+			if (group != null) {
+				final InetAddress groupAddress = InetAddress.getByName(group);
+				final NetworkInterface inet = interfaceName != null ? NetworkInterface.getByName(interfaceName) : UDPServer.defaultMulticastInterface();
 
-			int bufferSize = PACKET_RETRY_MAX * UDPServer.getMTU();
-			_socket.setReceiveBufferSize(bufferSize);
-
-			int actualBufferSize = _socket.getReceiveBufferSize();
+				if (inet == null) {
+					throw new Exception("unknown interface " + interfaceName);
+				}
 
-			if (actualBufferSize < bufferSize) {
-				UDPServer.log(String.format("[warning] SO_RCVBUF (%d) smaller than recommended size (%d). Packets might get lost.%n", actualBufferSize, bufferSize));
+				// several servers on the same host may join the same group on the same port
+				_channel = DatagramChannel.open(groupAddress instanceof Inet6Address ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+				_channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+				_channel.bind(new InetSocketAddress(port));
+				_channel.join(groupAddress, inet);
+			} else {
+				_channel = DatagramChannel.open();
+				_channel.bind(new InetSocketAddress(port));
 			}
+
+			_channel.configureBlocking(false);
+			_selector = Selector.open();
+			_channel.register(_selector, SelectionKey.OP_READ);
+
+			// a distribution starts out sending a window of packets without waiting for us, the buffer grows from there
+			final int bufferSize = Math.max(PACKET_RETRY_MAX, 2 * DISTRIBUTION_WINDOW_INITIAL) * UDPServer.getMTU();
+			_receiveBuffer = new SocketBuffer(_channel.socket(), StandardSocketOptions.SO_RCVBUF, bufferSize, bufferMemory);
 		} catch (Exception e) {
 			UDPServer.error("[error] Failed to create an DatagramSocket!" + e.getMessage());
 			System.exit(3);
 		}
 
-		// Java's CRC32 uses the IEEE 0x04C11DB7 polynomial
-		final CRC32 cc = new CRC32();
-		final byte[] start = { 'S', 't', 'a', 'r', 't' };
+		if (chunkStoreDir != null) {
+			try {
+				_chunkStore = new ChunkStore(new File(chunkStoreDir), CHUNK_CACHE_BUDGET, chunkStoreSize);
+				UDPServer.log("[log] opened chunk store '" + chunkStoreDir + "' with " + _chunkStore.size() + " chunks");
+			} catch (Exception e) {
+				UDPServer.error("[error] Failed to open the chunk store! " + e.getMessage());
+				System.exit(3);
+			}
+		}
 
-		mainloop:
-		while (true) {
-			_socket.setSoTimeout(0);
-			UDPServer.receive();
+		// the spool directory is created first, so that its name is never given to an upload
+		_spoolDir = new File(spoolDir != null ? spoolDir : SPOOL_DIR);
 
-			final InetSocketAddress targetAddress = (InetSocketAddress) _rxp.getSocketAddress();
+		if (!_spoolDir.isDirectory() && !_spoolDir.mkdirs()) {
+			UDPServer.error("[error] Failed to create the spool directory '" + _spoolDir + "'!");
+			System.exit(3);
+		}
 
-			// check if this is a resent packet due to a lost ACK by the previous client
-			if (targetAddress.equals(_targetAddress)) {
-				if (_rxd.limit() >= 4) {
-					short d_sessionId = _rxd.getShort();
-					byte d_packetId = _rxd.get();
+		try {
+			_names = new NameIndex(new File("."));
+			UDPServer.log("[log] indexed " + _names.size() + " existing files");
+		} catch (Exception e) {
+			UDPServer.error("[error] Failed to index the working directory! " + e.getMessage());
+			System.exit(3);
+		}
 
-					if (d_sessionId == _sessionId && d_packetId == UDPServer.packetId()) {
-						UDPServer.sendACK(d_packetId);
-						continue;
-					}
-				}
-			}
+		// otherwise moving a received file into place would only fail after the whole transfer
+		try {
+			_names.checkMove(_spoolDir);
+		} catch (Exception e) {
+			UDPServer.error("[error] Unusable spool directory! " + e.getMessage());
+			System.exit(3);
+		}
 
-			_targetAddress = targetAddress;
-			_socket.setSoTimeout(PACKET_TIMEOUT_SERVER);
-			UDPServer.resetPacketId();
+		_fileCache = new MappedFileCache(cacheSize);
 
-			File file;
-			short h_sessionId;
-			byte h_packetId;
-			long h_length;
-			short h_filenameLength;
-			byte[] h_filename;
-			int h_crc32;
+		// 40 Byte IPv6 Header size + 8 Byte UDP Header size
+		_payloadSize = UDPServer.getMTU() - (40 + 8);
 
-			try {
-				/*
-				 * The handshake header fields:
-				 *   short h_sessionId;
-				 *   byte h_packetId;
-				 *   long h_length;
-				 *   short h_filenameLength;
-				 *   byte[] h_filename;
-				 *   int h_crc32;
-				 */
+		// ACK header + signature count
+		_signaturesPerAck = (_payloadSize - 3 - 2) / SIGNATURE_SIZE;
 
-				/*
-				 * The handshake packet is in every possible case at least 23 Bytes
-				 * large. (This includes +1 for the assertion, that the filename is
-				 * at least 1 Byte long.)
-				 */
-				if (_rxd.limit() < 23) {
-					throw new Exception("too small");
-				}
+		_queue = new FairQueue(_payloadSize, queueSize);
+
+		/*
+		 * All sessions are handled on this thread: Everything the socket has buffered
+		 * is moved into the per-client queues, from which a single packet is dispatched
+		 * to the session of its client per iteration. Sessions whose deadline has passed
+		 * are given a chance to retransmit or time out. Packets which don't
+		 * belong to any session must be a handshake of a new one.
+		 */
+		final HashMap<SessionKey, UDPSession> sessions = new HashMap<>();
+		long drops = _receiveBuffer.drops();
+		long queueDrops = 0;
+		long dropCheckTime = 0;
+
+		while (true) {
+			long now = System.nanoTime() / 1000000;
 
-				h_sessionId = _rxd.getShort();
-				h_packetId = _rxd.get();
+			if (_queue.isEmpty()) {
+				long deadline = Long.MAX_VALUE;
 
-				// as per specification the handshake must have a packet ID of 0
-				if (h_packetId != UDPServer.packetId()) {
-					throw new Exception("invalid packet id");
+				for (UDPSession session : sessions.values()) {
+					deadline = Math.min(deadline, session.deadline());
 				}
 
-				for (int i = 0; i < start.length; i++) {
-					if (_rxd.get() != start[i]) {
-						throw new Exception("invalid \"Start\" signature");
-					}
+				if (deadline == Long.MAX_VALUE) {
+					_selector.select();
+				} else if (deadline > now) {
+					_selector.select(deadline - now);
 				}
 
-				h_length = _rxd.getLong();
+				_selector.selectedKeys().clear();
+			}
 
-				if (h_length <= 0) {
-					throw new Exception("invalid (zero) or too large (greater than Long.MAX_VALUE) length field");
-				}
+			long drained = 0;
 
-				h_filenameLength = _rxd.getShort();
+			for (InetSocketAddress address; (address = UDPServer.receive()) != null;) {
+				drained += _rxd.remaining();
+				_queue.add(address, _rxd);
+			}
 
-				/*
-				 * Check remaining() if the filename is actually fully present,
-				 * including 4 additional Bytes for the CRC32.
-				 */
-				if (h_filenameLength <= 0 || _rxd.remaining() - 4 < h_filenameLength) {
-					throw new Exception("invalid filename field");
-				}
+			now = System.nanoTime() / 1000000;
 
-				h_filename = new byte[h_filenameLength];
-				_rxd.get(h_filename);
+			/*
+			 * If the socket filled up to more than half of its buffer in between two
+			 * iterations, bursts are about to overflow it. Packets the kernel had to drop
+			 * already are reported by the kernel itself, where the platform exposes it.
+			 */
+			if (drained > _receiveBuffer.usable() / 2) {
+				_receiveBuffer.grow(2 * drained);
+			}
 
-				cc.reset();
-				cc.update(_rxd.array(), 0, _rxd.position());
+			if (now >= dropCheckTime) {
+				if (drops != -1) {
+					final long d = _receiveBuffer.drops();
 
-				h_crc32 = _rxd.getInt();
+					if (d > drops) {
+						UDPServer.log(String.format("[warning] the kernel dropped %,d packets, SO_RCVBUF is %,d", d - drops, _receiveBuffer.size()));
+						_receiveBuffer.grow(2L * _receiveBuffer.usable());
+					}
 
-				/*
-				 * Casting cc.getValue() down to int is very important.
-				 * cc.getValue() will return some positive value [0, 2^32).
-				 * _rxd.getInt() will return the same value (bitwise), but in a signed representation.
-				 * Thus we can just cast the first one down to an int, to get a correct comparison.
-				 * If we don't, the compiler would promote the (int) h_crc32 to an (long),
-				 * which turns (int)-1 to (long)-1, instead of an positive value [0, 2^32).
-				 */
-				if (h_crc32 != (int) cc.getValue()) {
-					throw new Exception("invalid checksum");
+					drops = d;
 				}
 
-				file = UDPServer.createFileForFilenameWish(h_filename);
-				_sessionId = h_sessionId;
-
-				UDPServer.sendACK(h_packetId);
-			} catch (Exception e) {
-				UDPServer.error("[error] handshake: " + e.getMessage());
-				_targetAddress = null;
-				continue mainloop;
-			}
+				// unlike the kernel the queue isn't grown, --queue-size is a hard limit
+				final long d = _queue.dropped();
 
-			UDPServer.log("[log] creating file '" + file.getName() + "'");
+				if (d > queueDrops) {
+					UDPServer.log(String.format("[warning] the queue dropped %,d packets, --queue-size is %,d", d - queueDrops, _queue.budget()));
+				}
 
-			try (final FileOutputStream fout = new FileOutputStream(file)) {
-				long remaining = h_length;
-				long lastValidPacketTime = System.nanoTime();
+				queueDrops = d;
+				dropCheckTime = now + DROP_CHECK_INTERVAL;
+			}
 
-				cc.reset();
+			final FairQueue.Packet packet = _queue.poll();
 
-				while (remaining >= 0) {
-					final long time = System.nanoTime();
-					final long timeDiff = (time - lastValidPacketTime) / 1000000;
+			if (packet != null && packet.data.length >= 3) {
+				final InetSocketAddress address = packet.address;
 
-					if (timeDiff > PACKET_TIMEOUT_SERVER) {
-						throw new Exception("timeout");
-					}
+				_rxd.clear();
+				_rxd.put(packet.data);
+				_rxd.flip();
 
-					try {
-						UDPServer.receive();
-					} catch (SocketTimeoutException e) {
-						throw new Exception("timeout");
-					}
+				final short d_sessionId = _rxd.getShort();
+				final byte d_packetId = _rxd.get();
+				final SessionKey key = new SessionKey(address, d_sessionId);
+				UDPSession session = sessions.get(key);
 
-					final InetSocketAddress d_address = (InetSocketAddress) _rxp.getSocketAddress();
+				/*
+				 * Clients keep their session id for all of their transfers. A handshake
+				 * with another transfer number starts the next transfer, replacing
+				 * the previous one, which the client has either finished or given up on.
+				 */
+				if (session != null) {
+					final int transfer = UDPServer.handshakeTransfer();
 
-					if (!d_address.equals(_targetAddress)) {
-						continue;
-					}
+					if (transfer >= 0 && transfer != session._transfer) {
+						if (!session.finished()) {
+							session.close(true);
+						}
 
-					/*
-					 * +1 byte as an assertion that this packet
-					 * contains at least a single byte of data.
-					 */
-					if (_rxd.limit() < 4) {
-						throw new Exception("too small");
+						sessions.remove(key);
+						session = null;
 					}
+				}
 
-					short d_sessionId = _rxd.getShort();
-					byte d_packetId = _rxd.get();
-
-					if (d_sessionId != _sessionId) {
-						throw new Exception("invalid session id");
+				if (session != null) {
+					try {
+						session.receive(_rxd, d_packetId, now);
+					} catch (Exception e) {
+						UDPServer.error("[error] data: " + e.getMessage());
+						session.close(true);
+						sessions.remove(key);
 					}
-
-					if (d_packetId != UDPServer.nextPacketId()) {
-						UDPServer.sendACK(d_packetId);
-						continue;
+				} else {
+					try {
+						_rxd.rewind();
+						session = UDPServer.accept(address, UDPServer.admit(sessions), now);
+						sessions.put(key, session);
+					} catch (Exception e) {
+						UDPServer.error("[error] handshake: " + e.getMessage());
 					}
+				}
 
-					UDPServer.setPacketId(d_packetId);
-					lastValidPacketTime = time;
-
-					int dataLength = _rxd.remaining();
-
-					/*
-					 * If remaining is -4 this packet must contain additional 4
-					 * bytes at the end, which contains the CRC32 sum over all data.
-					 * If remaining is 0 the next packet must only contain 4 bytes
-					 * at the end, which contains the CRC32 sum over all data.
-					 */
-					remaining -= dataLength;
+				/*
+				 * The packet itself has been paid for by the queue already,
+				 * but a single FRAME_COPY may cause megabytes of disk I/O.
+				 */
+				if (session != null) {
+					final long diskBytes = session.takeDiskBytes();
 
-					if (remaining <= 0) {
-						if (remaining == -4) {
-							dataLength -= 4;
-						} else if (remaining != 0) {
-							throw new Exception("missing final CRC32");
-						}
+					if (diskBytes > packet.data.length) {
+						_queue.charge(address.getAddress(), diskBytes - packet.data.length);
 					}
+				}
+			}
 
-					if (dataLength > 0) {
-						cc.update(_rxd.array(), _rxd.position(), dataLength);
-						fout.write(_rxd.array(), _rxd.position(), dataLength);
-					}
+			final Iterator<UDPSession> it = sessions.values().iterator();
 
-					if (remaining == -4) {
-						int d_crc32 = _rxd.getInt(_rxd.position() + dataLength);
-
-						/*
-						 * Casting cc.getValue() down to int is very important.
-						 * cc.getValue() will return some positive value [0, 2^32).
-						 * _rxd.getInt() will return the same value (bitwise), but in a signed representation.
-						 * Thus we can just cast the first one down to an int, to get a correct comparison.
-						 * If we don't, the compiler would promote the (int) h_crc32 to an (long),
-						 * which turns (int)-1 to (long)-1, instead of an positive value [0, 2^32).
-						 */
-						if (d_crc32 != (int) cc.getValue()) {
-							throw new Exception("checksum not equal");
-						}
-					}
+			while (it.hasNext()) {
+				final UDPSession session = it.next();
 
-					UDPServer.sendACK(d_packetId);
+				if (now < session.deadline()) {
+					continue;
 				}
 
-				UDPServer.log("[log] finished file '" + file.getName() + "'");
-			} catch (Exception e) {
-				UDPServer.error("[error] data: " + e.getMessage());
-				UDPServer.log("[log] deleted file '" + file.getName() + "'");
-				file.delete();
+				try {
+					if (session.timeout(now)) {
+						it.remove();
+					}
+				} catch (Exception e) {
+					UDPServer.error("[error] data: " + e.getMessage());
+					session.close(true);
+					it.remove();
+				}
 			}
 		}
 	}
@@ -0,0 +1,104 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * The state of a single transfer on the server.
+ *
+ * A session is identified by the address of the client and the
+ * session id of its handshake. The server dispatches all packets
+ * of a client to its session and calls timeout() once the
+ * deadline of the session has been reached.
+ */
+abstract class UDPSession extends UDPBase {
+	protected final InetSocketAddress _address;
+	protected final short _id;
+
+	protected byte _packetId;
+	protected byte[] _ackd = new byte[0];
+	protected long _deadline;
+	protected boolean _finished;
+
+	// the transfer number of the handshake or -1, see FLAG_TRANSFER
+	int _transfer = -1;
+
+	// the bytes read from or written to disk while handling the current packet
+	protected long _diskBytes;
+
+	UDPSession(InetSocketAddress address, short id) {
+		_address = address;
+		_id = id;
+	}
+
+	long deadline() {
+		return _deadline;
+	}
+
+	/**
+	 * @return true if the transfer completed and the session only lingers
+	 *         around to answer retransmissions of the client.
+	 */
+	boolean finished() {
+		return _finished;
+	}
+
+	/**
+	 * @return The bytes read from or written to disk since the last call.
+	 */
+	long takeDiskBytes() {
+		final long bytes = _diskBytes;
+		_diskBytes = 0;
+		return bytes;
+	}
+
+	/**
+	 * Handles a packet of the client.
+	 *
+	 * @param rxd The packet, positioned right after the session id and packet id.
+	 * @param packetId The packet id of the packet.
+	 * @param now The current time in ms.
+	 * @throws Exception if the transfer failed.
+	 */
+	abstract void receive(ByteBuffer rxd, byte packetId, long now) throws Exception;
+
+	/**
+	 * Called once the deadline of the session has been reached.
+	 *
+	 * @return true if the session is over and should be removed.
+	 * @throws Exception if the transfer failed.
+	 */
+	abstract boolean timeout(long now) throws Exception;
+
+	/**
+	 * Releases all resources of the session.
+	 *
+	 * @param failed true if the transfer failed.
+	 */
+	abstract void close(boolean failed);
+
+	/**
+	 * Sends a single ACK with an optional payload to the client.
+	 *
+	 * The ACK is kept around, so that it can be sent again
+	 * using resendACK() if the client repeats the packet.
+	 *
+	 * @throws IOException
+	 */
+	protected void sendACK(byte packetId, ByteBuffer payload) throws IOException {
+		final ByteBuffer ackd = ByteBuffer.allocate(2 + 1 + (payload != null ? payload.remaining() : 0));
+		ackd.putShort(_id);
+		ackd.put(packetId);
+
+		if (payload != null) {
+			ackd.put(payload);
+		}
+
+		_ackd = ackd.array();
+
+		this.resendACK();
+	}
+
+	protected void resendACK() throws IOException {
+		UDPServer.send(_ackd, _ackd.length, _address);
+	}
+}
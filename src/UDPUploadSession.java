@@ -0,0 +1,605 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.zip.CRC32;
+
+/**
+ * A transfer of a file from a client to the server.
+ */
+class UDPUploadSession extends UDPSession {
+	private final SpoolFile _file;
+	private final long _length;
+	private final boolean _extended;
+	private final int _flags;
+
+	private final RandomAccessFile _fout;
+	private final RandomAccessFile _basis;
+	private final int _blockSize;
+	private final int _blockCount;
+	private final byte[] _block;
+
+	// Java's CRC32 uses the IEEE 0x04C11DB7 polynomial, it's null if FLAG_CRC32C was accepted
+	private final CRC32 _cc;
+	private final MessageDigest _md;
+	private long _remaining;
+
+	private final BlockChecksums _checksums;
+	private final int[] _expected;
+	private int _expectedCount;
+	private int _checksummed;
+	private CompletableFuture<Integer> _verification;
+	private int _endCrc;
+	private int _repairs;
+
+	/**
+	 * Opens the spool file and sends the ACK for the handshake.
+	 *
+	 * @param basisFile The existing file a delta is applied to or null.
+	 * @param transfer The transfer number of the handshake or -1, see FLAG_TRANSFER.
+	 * @param early The first bytes of the file sent along with the handshake or null.
+	 * @throws Exception
+	 */
+	UDPUploadSession(InetSocketAddress address, short id, SpoolFile file, long length, boolean extended, int flags, int transfer, File basisFile, int blockSize, int blockCount, ByteBuffer early, long now) throws Exception {
+		super(address, id);
+
+		_file = file;
+		_length = length;
+		_extended = extended;
+		_flags = flags;
+		_transfer = transfer;
+		_remaining = length;
+
+		_blockSize = blockSize;
+		_blockCount = blockCount;
+		_block = new byte[blockSize];
+		_md = MessageDigest.getInstance("MD5");
+
+		try {
+			_fout = new RandomAccessFile(file.temp(), "rw");
+		} catch (Exception e) {
+			file.discard();
+			throw e;
+		}
+
+		if ((flags & FLAG_CRC32C) != 0) {
+			_checksums = new BlockChecksums(_fout.getChannel(), length);
+			_expected = new int[_checksums.count()];
+			_cc = null;
+		} else {
+			_checksums = null;
+			_expected = null;
+			_cc = new CRC32();
+		}
+
+		try {
+			_basis = basisFile != null ? new RandomAccessFile(basisFile, "r") : null;
+		} catch (Exception e) {
+			_fout.close();
+			file.discard();
+			throw e;
+		}
+
+		if (basisFile != null) {
+			UDPUploadSession.log("[log] creating file '" + file.getName() + "' as a delta of '" + basisFile.getName() + "'");
+		} else {
+			UDPUploadSession.log("[log] creating file '" + file.getName() + "'");
+		}
+
+		/*
+		 * The handshake is protected by its own CRC32, which is why early data
+		 * containing the whole file completes the transfer right away.
+		 * Its blocks aren't checksummed then, as the file is closed immediately.
+		 */
+		if (early != null) {
+			try {
+				this.write(early.array(), early.position(), early.remaining());
+				_remaining -= early.remaining();
+
+				if (_checksums != null && _remaining != 0) {
+					this.checksumBlocks();
+				}
+
+				if (_remaining == 0) {
+					this.commit();
+				}
+			} catch (Exception e) {
+				this.close(true);
+				throw e;
+			}
+		}
+
+		if (extended) {
+			final ByteBuffer payload = ByteBuffer.allocate(4 + 2 + 4 + 4);
+			payload.putInt(flags);
+
+			if ((flags & FLAG_TRANSFER) != 0) {
+				payload.putShort((short) transfer);
+			}
+
+			if (basisFile != null) {
+				payload.putInt(blockSize);
+				payload.putInt(blockCount);
+			}
+
+			payload.flip();
+
+			this.sendACK(_packetId, payload);
+		} else {
+			this.sendACK(_packetId, null);
+		}
+
+		_deadline = now + PACKET_TIMEOUT_SERVER;
+	}
+
+	@Override
+	void receive(ByteBuffer rxd, byte packetId, long now) throws Exception {
+		// the transfer is complete, but the client might not have received the last ACK
+		if (_finished) {
+			if (packetId == _packetId) {
+				this.resendACK();
+			}
+
+			return;
+		}
+
+		// the client repeats its FRAME_END until the verification is done
+		if (_verification != null) {
+			if (packetId == _packetId) {
+				this.resendACK();
+			}
+
+			return;
+		}
+
+		/*
+		 * +1 byte as an assertion that this packet
+		 * contains at least a single byte of data.
+		 */
+		if (!rxd.hasRemaining()) {
+			throw new Exception("too small");
+		}
+
+		if (packetId != (byte) ((_packetId + 1) % PACKET_ID_COUNT)) {
+			this.resendACK();
+			return;
+		}
+
+		_packetId = packetId;
+		_deadline = now + PACKET_TIMEOUT_SERVER;
+
+		if (_extended) {
+			this.receiveFrame(rxd);
+		} else {
+			this.receiveData(rxd);
+			this.sendACK(packetId, null);
+		}
+
+		// poll for the completion of the verification
+		if (_verification != null) {
+			_deadline = now + PACKET_TIMEOUT_MIN;
+		}
+	}
+
+	@Override
+	boolean timeout(long now) throws Exception {
+		if (_verification != null) {
+			if (_verification.isDone()) {
+				this.verify();
+				_deadline = now + PACKET_TIMEOUT_SERVER;
+			} else {
+				_deadline = now + PACKET_TIMEOUT_MIN;
+			}
+
+			return false;
+		}
+
+		if (!_finished) {
+			throw new Exception("timeout");
+		}
+
+		return true;
+	}
+
+	@Override
+	void close(boolean failed) {
+		try {
+			_fout.close();
+
+			if (_basis != null) {
+				_basis.close();
+			}
+		} catch (Exception e) {
+		}
+
+		if (failed) {
+			UDPUploadSession.log("[log] deleted file '" + _file.getName() + "'");
+			_file.discard();
+		}
+	}
+
+	/**
+	 * Moves the complete file into place, before its last ACK is sent.
+	 * Only then it's added to the chunk store, if one is configured.
+	 *
+	 * @throws Exception
+	 */
+	private void commit() throws Exception {
+		this.close(false);
+		final File target = _file.commit();
+		_finished = true;
+		UDPUploadSession.log("[log] finished file '" + _file.getName() + "'");
+
+		if (UDPServer._chunkStore != null) {
+			UDPServer._chunkStore.add(target);
+		}
+	}
+
+	/**
+	 * Compares the block checksums sent by the client with those of the received data.
+	 *
+	 * The ACK of the FRAME_END contains the indices of all mismatching blocks
+	 * (as many as fit into it), which the client then sends again.
+	 * If there are none the transfer is complete.
+	 *
+	 * @throws Exception
+	 */
+	private void verify() throws Exception {
+		final int crc;
+
+		try {
+			crc = _verification.join();
+		} catch (CompletionException e) {
+			throw new Exception("failed to verify the checksums", e.getCause());
+		}
+
+		_verification = null;
+
+		final int max = (UDPServer._payloadSize - 3 - 2) / 4;
+		final ByteBuffer payload = ByteBuffer.allocate(2 + max * 4);
+		int count = 0;
+
+		payload.putShort((short) 0);
+
+		for (int i = 0; i < _checksums.count() && count < max; i++) {
+			if (_checksums.get(i) != _expected[i]) {
+				payload.putInt(i);
+				count++;
+			}
+		}
+
+		if (count == 0) {
+			if (crc != _endCrc) {
+				throw new Exception("checksum not equal");
+			}
+
+			// a trailing hole isn't followed by any write which would extend the file
+			if (_fout.length() < _length) {
+				_fout.setLength(_length);
+			}
+
+			this.commit();
+		} else {
+			if (++_repairs > PACKET_RETRY_MAX) {
+				throw new Exception("checksum not equal");
+			}
+
+			UDPUploadSession.log("[log] requesting " + count + " corrupted blocks of file '" + _file.getName() + "'");
+		}
+
+		payload.putShort(0, (short) count);
+		payload.flip();
+
+		this.sendACK(_packetId, payload);
+	}
+
+	/**
+	 * Schedules the checksums of all blocks which have been completely written.
+	 */
+	private void checksumBlocks() throws IOException {
+		final long position = _fout.getFilePointer();
+
+		while (_checksummed < _checksums.count() && _checksums.offset(_checksummed) + _checksums.length(_checksummed) <= position) {
+			if (!_checksums.submitted(_checksummed)) {
+				_checksums.submit(_checksummed);
+			}
+
+			_checksummed++;
+		}
+	}
+
+	/**
+	 * Handles a single frame of the extended protocol.
+	 *
+	 * @throws Exception
+	 */
+	private void receiveFrame(ByteBuffer rxd) throws Exception {
+		final byte d_type = rxd.get();
+		ByteBuffer payload = null;
+
+		switch (d_type) {
+		case FRAME_DATA: {
+			final int dataLength = rxd.remaining();
+
+			if (dataLength > _remaining) {
+				throw new Exception("too much data");
+			}
+
+			this.write(rxd.array(), rxd.position(), dataLength);
+			_remaining -= dataLength;
+			break;
+		}
+		case FRAME_HOLE: {
+			if ((_flags & FLAG_SPARSE) == 0 || rxd.remaining() != 8) {
+				throw new Exception("invalid hole frame");
+			}
+
+			final long holeLength = rxd.getLong();
+
+			if (holeLength <= 0 || holeLength > _remaining) {
+				throw new Exception("invalid hole length");
+			}
+
+			/*
+			 * Instead of writing zeros we just skip over the range.
+			 * The next write past it leaves a sparse region behind.
+			 */
+			if (_cc != null) {
+				UDPUploadSession.updateWithZeros(_cc, holeLength);
+			}
+
+			_fout.seek(_fout.getFilePointer() + holeLength);
+			_remaining -= holeLength;
+			break;
+		}
+		case FRAME_SIGNATURES: {
+			if (_basis == null || rxd.remaining() != 4) {
+				throw new Exception("invalid signatures frame");
+			}
+
+			final int first = rxd.getInt();
+
+			if (first < 0 || first >= _blockCount) {
+				throw new Exception("invalid signatures block");
+			}
+
+			final int count = Math.min(_blockCount - first, UDPServer._signaturesPerAck);
+
+			payload = ByteBuffer.allocate(2 + count * SIGNATURE_SIZE);
+			payload.putShort((short) count);
+
+			_basis.seek((long) first * _blockSize);
+			_diskBytes += (long) count * _blockSize;
+
+			for (int i = 0; i < count; i++) {
+				_basis.readFully(_block);
+				_md.update(_block);
+
+				payload.putInt(UDPUploadSession.weakChecksum(_block, 0, _blockSize));
+				payload.put(_md.digest());
+			}
+
+			payload.flip();
+			break;
+		}
+		case FRAME_COPY: {
+			if (_basis == null || rxd.remaining() != 8) {
+				throw new Exception("invalid copy frame");
+			}
+
+			final int first = rxd.getInt();
+			final int count = rxd.getInt();
+
+			// the copy happens on the event loop, which is why clients may only ask for COPY_BYTES_MAX at once
+			if (first < 0 || count <= 0 || count > _blockCount - first || (long) count * _blockSize > Math.min(_remaining, COPY_BYTES_MAX)) {
+				throw new Exception("invalid copy range");
+			}
+
+			_basis.seek((long) first * _blockSize);
+			_diskBytes += (long) count * _blockSize;
+
+			for (int i = 0; i < count; i++) {
+				_basis.readFully(_block);
+				this.write(_block, 0, _blockSize);
+			}
+
+			_remaining -= (long) count * _blockSize;
+			break;
+		}
+		case FRAME_QUERY: {
+			final int count = rxd.remaining() / CHUNK_HASH_SIZE;
+
+			if (UDPServer._chunkStore == null || count == 0 || rxd.remaining() != count * CHUNK_HASH_SIZE) {
+				throw new Exception("invalid query frame");
+			}
+
+			payload = ByteBuffer.allocate(count);
+
+			for (int i = 0; i < count; i++) {
+				final boolean present = UDPServer._chunkStore.contains(rxd.array(), rxd.position() + i * CHUNK_HASH_SIZE);
+				payload.put((byte) (present ? 1 : 0));
+			}
+
+			payload.flip();
+			break;
+		}
+		case FRAME_REFERENCE: {
+			if (UDPServer._chunkStore == null || rxd.remaining() != CHUNK_HASH_SIZE + 4) {
+				throw new Exception("invalid reference frame");
+			}
+
+			final byte[] chunk = UDPServer._chunkStore.get(rxd.array(), rxd.position());
+			_diskBytes += chunk != null ? chunk.length : 0;
+			final int chunkLength = rxd.getInt(rxd.position() + CHUNK_HASH_SIZE);
+
+			if (chunk == null || chunk.length != chunkLength || chunkLength > _remaining) {
+				throw new Exception("invalid chunk reference");
+			}
+
+			this.write(chunk, 0, chunkLength);
+			_remaining -= chunkLength;
+			break;
+		}
+		case FRAME_CHECKSUMS: {
+			final int count = rxd.remaining() / 4 - 1;
+
+			if (_checksums == null || count <= 0 || rxd.remaining() != (count + 1) * 4) {
+				throw new Exception("invalid checksums frame");
+			}
+
+			// the checksums are sent in order, duplicates are already filtered out by the packet id
+			if (rxd.getInt() != _expectedCount || count > _expected.length - _expectedCount) {
+				throw new Exception("invalid checksums range");
+			}
+
+			for (int i = 0; i < count; i++) {
+				_expected[_expectedCount++] = rxd.getInt();
+			}
+
+			break;
+		}
+		case FRAME_REPAIR: {
+			if (_checksums == null || rxd.remaining() != 4) {
+				throw new Exception("invalid repair frame");
+			}
+
+			final int block = rxd.getInt();
+
+			if (block < 0 || block >= _checksums.count()) {
+				throw new Exception("invalid repair block");
+			}
+
+			// the previous block must have been sent completely
+			if (_remaining != 0) {
+				throw new Exception("missing data");
+			}
+
+			/*
+			 * The block is sent as literal data, even if it contains zeros,
+			 * since skipping over them would leave the corrupted data behind.
+			 */
+			_checksums.invalidate(block);
+			_checksummed = block;
+			_fout.seek(_checksums.offset(block));
+			_remaining = _checksums.length(block);
+			break;
+		}
+		case FRAME_END: {
+			if (rxd.remaining() != 4) {
+				throw new Exception("invalid end frame");
+			}
+
+			if (_remaining != 0) {
+				throw new Exception("missing data");
+			}
+
+			/*
+			 * Verifying the block checksums happens on the worker threads,
+			 * which is why the result is only sent once timeout() notices its completion.
+			 * Until then the FRAME_END is answered with VERIFYING.
+			 */
+			if (_checksums != null) {
+				if (_expectedCount != _expected.length) {
+					throw new Exception("missing block checksums");
+				}
+
+				this.checksumBlocks();
+				_endCrc = rxd.getInt();
+				_verification = _checksums.combined();
+
+				payload = ByteBuffer.allocate(2);
+				payload.putShort(VERIFYING);
+				payload.flip();
+				break;
+			}
+
+			if (rxd.getInt() != (int) _cc.getValue()) {
+				throw new Exception("checksum not equal");
+			}
+
+			// a trailing hole isn't followed by any write which would extend the file
+			if (_fout.length() < _length) {
+				_fout.setLength(_length);
+			}
+
+			this.commit();
+			break;
+		}
+		default:
+			throw new Exception("invalid frame type");
+		}
+
+		if (_checksums != null) {
+			this.checksumBlocks();
+		}
+
+		this.sendACK(_packetId, payload);
+	}
+
+	/**
+	 * Handles a single data packet of the original protocol.
+	 *
+	 * @throws Exception
+	 */
+	private void receiveData(ByteBuffer rxd) throws Exception {
+		int dataLength = rxd.remaining();
+
+		/*
+		 * If remaining is -4 this packet must contain additional 4
+		 * bytes at the end, which contains the CRC32 sum over all data.
+		 * If remaining is 0 the next packet must only contain 4 bytes
+		 * at the end, which contains the CRC32 sum over all data.
+		 */
+		_remaining -= dataLength;
+
+		if (_remaining <= 0) {
+			if (_remaining == -4) {
+				dataLength -= 4;
+			} else if (_remaining != 0) {
+				throw new Exception("missing final CRC32");
+			}
+		}
+
+		if (dataLength > 0) {
+			this.write(rxd.array(), rxd.position(), dataLength);
+		}
+
+		if (_remaining == -4) {
+			int d_crc32 = rxd.getInt(rxd.position() + dataLength);
+
+			/*
+			 * Casting cc.getValue() down to int is very important.
+			 * cc.getValue() will return some positive value [0, 2^32).
+			 * rxd.getInt() will return the same value (bitwise), but in a signed representation.
+			 * Thus we can just cast the first one down to an int, to get a correct comparison.
+			 * If we don't, the compiler would promote the (int) h_crc32 to an (long),
+			 * which turns (int)-1 to (long)-1, instead of an positive value [0, 2^32).
+			 */
+			if (d_crc32 != (int) _cc.getValue()) {
+				throw new Exception("checksum not equal");
+			}
+
+			this.commit();
+		}
+	}
+
+	/**
+	 * Writes data to the file.
+	 *
+	 * Besides writing, this updates the checksum, unless block checksums are used.
+	 *
+	 * @throws IOException
+	 */
+	private void write(byte[] b, int off, int len) throws IOException {
+		if (_cc != null) {
+			_cc.update(b, off, len);
+		}
+
+		_fout.write(b, off, len);
+		_diskBytes += len;
+	}
+}